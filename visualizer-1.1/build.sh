@@ -0,0 +1,7 @@
+#!/bin/sh
+# Compiles the sources into ./classes. The bundled visualizer.jar is the 1.1 release, the
+# tools added since then run from the compiled classes:
+#   java -cp "classes:visualizer_lib/*" visualizer.Visualizer -truth ./data/truth.csv ...
+cd "$(dirname "$0")" || exit 1
+mkdir -p classes
+javac -encoding UTF-8 -d classes -cp "visualizer_lib/*" src/visualizer/*.java
@@ -0,0 +1,14 @@
+#!/bin/sh
+# Load test of the scoring server.
+# Start the server first, e.g.:
+#   ./build.sh
+#   java -cp "classes:visualizer_lib/*" visualizer.Visualizer -truth ./data/truth.csv -server 8000
+# then run:
+#   ./load-test.sh ./data/solution.csv 200 8
+SOLUTION=${1:-./data/solution.csv}
+REQUESTS=${2:-100}
+THREADS=${3:-4}
+PORT=${PORT:-8000}
+DIR=$(dirname "$0")
+"$DIR/build.sh" || exit 1
+java -cp "$DIR/classes:$DIR/visualizer_lib/*" visualizer.ScoringClient -port "$PORT" -solution "$SOLUTION" -requests "$REQUESTS" -threads "$THREADS"
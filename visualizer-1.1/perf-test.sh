@@ -0,0 +1,14 @@
+#!/bin/sh
+# Performance regression check on a synthetic data set.
+# The first run generates the data set and stores the baseline times and golden scores,
+# later runs compare with them and exit with status 1 on a regression:
+#   ./perf-test.sh
+# Extra arguments go to the harness, e.g. ./perf-test.sh -update to accept the current times.
+DIR=$(dirname "$0")
+DATA=${DATA:-./perf-data}
+CP="$DIR/classes:$DIR/visualizer_lib/*"
+"$DIR/build.sh" || exit 1
+if [ ! -f "$DATA/truth.csv" ]; then
+	java -cp "$CP" visualizer.DataGenerator -out "$DATA" -images 200 -buildings 80 -holes 0.1 || exit 1
+fi
+java -cp "$CP" visualizer.PerfHarness -data "$DATA" "$@"
@@ -0,0 +1,111 @@
+package visualizer;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * Where two solutions of the same truth, A and B, disagree on one image. Both are scored with
+ * the same IouCache, so the IOUs of buildings the solutions share are calculated once.
+ * A truth building differs if one solution finds it (TP) and the other doesn't (FN), the polygon
+ * that found it and the false positives of the other solution that overlap it are kept with it.
+ * A false positive differs if the other solution has no false positive at the same place, i.e.
+ * with an IOU above the threshold.
+ */
+public class AbDiff {
+	public Metrics a, b; // null if the image can't be scored
+	public List<Polygon> truth = new Vector<>(); // buildings found by only one of the solutions
+	public List<Polygon> aPolygons = new Vector<>(); // polygons of A involved in a difference
+	public List<Polygon> bPolygons = new Vector<>();
+	public int tpAOnly, tpBOnly, fpAOnly, fpBOnly;
+
+	/**
+	 * Scores both solutions of an image. Truth polygons get their match state from A if markTruth
+	 * is true, they are never changed by B.
+	 */
+	public static AbDiff of(Scorer scorer, Polygon[] truthPolygons, Polygon[] aPolygons, Polygon[] bPolygons,
+			boolean markTruth, IouCache cache) {
+		AbDiff ret = new AbDiff();
+		ret.a = scorer.score(truthPolygons, aPolygons, markTruth, cache);
+		ret.b = scorer.score(truthPolygons, bPolygons, false, cache);
+		if (ret.a == null || ret.b == null) return ret;
+		Set<Polygon> aInvolved = Collections.newSetFromMap(new IdentityHashMap<Polygon, Boolean>());
+		Set<Polygon> bInvolved = Collections.newSetFromMap(new IdentityHashMap<Polygon, Boolean>());
+		Map<Polygon, Polygon> aPartners = partners(aPolygons);
+		Map<Polygon, Polygon> bPartners = partners(bPolygons);
+		for (Polygon tP: truthPolygons) {
+			Polygon aP = aPartners.get(tP);
+			Polygon bP = bPartners.get(tP);
+			if ((aP == null) == (bP == null)) continue;
+			ret.truth.add(tP);
+			if (aP != null) {
+				ret.tpAOnly++;
+				add(ret.aPolygons, aInvolved, aP);
+				addOverlapping(tP, bPolygons, ret.bPolygons, bInvolved, cache);
+			}
+			else {
+				ret.tpBOnly++;
+				add(ret.bPolygons, bInvolved, bP);
+				addOverlapping(tP, aPolygons, ret.aPolygons, aInvolved, cache);
+			}
+		}
+		double threshold = scorer.iouThreshold();
+		for (Polygon sP: aPolygons) {
+			if (sP.match == Match.FP && !hasSimilarFp(sP, bPolygons, threshold)) {
+				ret.fpAOnly++;
+				add(ret.aPolygons, aInvolved, sP);
+			}
+		}
+		for (Polygon sP: bPolygons) {
+			if (sP.match == Match.FP && !hasSimilarFp(sP, aPolygons, threshold)) {
+				ret.fpBOnly++;
+				add(ret.bPolygons, bInvolved, sP);
+			}
+		}
+		return ret;
+	}
+
+	// F-score of B minus that of A, 0 if the image can't be scored
+	public double fDelta() {
+		if (a == null || b == null) return 0;
+		return b.fScore() - a.fScore();
+	}
+
+	public boolean differs() {
+		return tpAOnly + tpBOnly + fpAOnly + fpBOnly > 0;
+	}
+
+	// Truth polygon -> the solution polygon that matched it
+	private static Map<Polygon, Polygon> partners(Polygon[] solutionPolygons) {
+		Map<Polygon, Polygon> ret = new IdentityHashMap<>();
+		for (Polygon sP: solutionPolygons) {
+			if (sP.match == Match.TP) ret.put(sP.partner, sP);
+		}
+		return ret;
+	}
+
+	private static void add(List<Polygon> list, Set<Polygon> set, Polygon p) {
+		if (set.add(p)) list.add(p);
+	}
+
+	// The false positives that overlap a truth polygon, e.g. a building found with too low IOU
+	private static void addOverlapping(Polygon tP, Polygon[] solutionPolygons, List<Polygon> list, Set<Polygon> set,
+			IouCache cache) {
+		for (Polygon sP: solutionPolygons) {
+			if (sP.match == Match.FP && cache.iou(tP, sP) > 0) add(list, set, sP);
+		}
+	}
+
+	private static boolean hasSimilarFp(Polygon sP, Polygon[] others, double threshold) {
+		for (Polygon oP: others) {
+			if (oP.match != Match.FP) continue;
+			if (sP.minx > oP.maxx || sP.maxx < oP.minx) continue;
+			if (sP.miny > oP.maxy || sP.maxy < oP.miny) continue;
+			if (Scorer.iou(sP, oP) > threshold) return true;
+		}
+		return false;
+	}
+}
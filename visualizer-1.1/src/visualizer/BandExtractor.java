@@ -1,17 +1,36 @@
 package visualizer;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
 import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
 public class BandExtractor {
-	private int[] i8 = new int[8];
 	private String imageType;
 	private List<Integer> bandIndexes;
+	private int[] region; // x, y, w, h of the area to extract, null for the whole image
+	private static final int STRIP_SAMPLES = 1 << 22; // samples of all bands read at once
+	private BandStats stats; // band statistics cache, may be null
+	private String statsScale = "image"; // image, dataset or p99, see main()
+	private int compressionLevel = -1; // 0..9, -1 for the default of the output type
+	private StripWriter[] writers = new StripWriter[8]; // one per band, reused for all files
+	private Map<String, ImageWriter> imageWriters = new HashMap<>(); // ImageIO writers of other types, reused
+	private ExecutorService encoders; // encode the bands of a strip in parallel
+	private List<Future<Void>> pending = new Vector<>(); // encoding of the previous strip
 	
 	public BandExtractor(String bands) {
 		bandIndexes = new Vector<>();
@@ -30,18 +49,53 @@ public class BandExtractor {
 			return;
 		}
 		
-		BufferedImage img = ImageIO.read(inFile);
-		Raster r = img.getRaster();
-		int w = img.getWidth(); int h = img.getHeight();
-		BufferedImage[] bandImgs = new BufferedImage[8];
-		for (int b: bandIndexes) bandImgs[b] = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		// the encoding of the last strip isn't waited for, it overlaps with the next file
+		Telemetry.Span span = Telemetry.begin(Telemetry.Op.BAND_EXTRACT);
+		BandSource src = new BandSource(inFile);
+		try {
+			process(src, inFile, name, outDir, externalMax);
+		}
+		finally {
+			src.close();
+			span.end(inFile.getPath(), (long) src.width * src.height, bandIndexes.size());
+		}
+	}
+	
+	/**
+	 * The image is processed in horizontal strips, once to find the maximums and once to write 
+	 * the output, so memory use doesn't depend on the image size.
+	 */
+	private void process(BandSource src, File inFile, String name, File outDir, int externalMax) throws Exception {
+		int x0 = 0, y0 = 0, x1 = src.width, y1 = src.height;
+		if (region != null) {
+			x0 = Math.max(x0, region[0]);
+			y0 = Math.max(y0, region[1]);
+			x1 = Math.min(x1, region[0] + region[2]);
+			y1 = Math.min(y1, region[1] + region[3]);
+			if (x1 <= x0 || y1 <= y0) {
+				System.out.println("  region is outside of the image, skipping");
+				return;
+			}
+			System.out.println("  region: " + x0 + "," + y0 + "," + (x1 - x0) + "," + (y1 - y0));
+		}
+		int w = x1 - x0; int h = y1 - y0;
+		// strips are aligned to the blocks of the file so each block is decoded once per pass
+		int stripRows = Math.max(1, STRIP_SAMPLES / (w * src.bandCnt));
+		stripRows = Math.max(src.blockHeight, stripRows / src.blockHeight * src.blockHeight);
 		
 		int[] maxPerBand = new int[8];
-		for (int i = 0; i < w; i++) for (int j = 0; j < h; j++) {
-			int[] samples = r.getPixel(i, j, i8);
-			for (int b: bandIndexes) {
-				int m = samples[b];
-				maxPerBand[b] = Math.max(maxPerBand[b], m);
+		// the cache has the statistics of whole images only
+		BandStats.ImageStats cached = stats == null || region != null ? null : stats.get(inFile);
+		if (cached != null) {
+			System.out.println("  maximums from band statistics cache");
+			for (int b: bandIndexes) maxPerBand[b] = cached.max[b];
+		}
+		else {
+			for (int y = y0; y < y1; y = stripEnd(y, y1, stripRows)) {
+				TiffReader.Bands strip = src.read(x0, y, w, stripEnd(y, y1, stripRows) - y);
+				for (int b: bandIndexes) {
+					for (int m: strip.planes[b]) maxPerBand[b] = Math.max(maxPerBand[b], m);
+				}
 			}
 		}
 		int max = -1;
@@ -54,6 +108,12 @@ public class BandExtractor {
 			}
 		}
 		System.out.println("  global max: " + max + " at band " + (maxIndex+1));
+		if (stats != null && statsScale.equals("dataset")) {
+			max = stats.dataset().max(bandIndexes);
+		}
+		else if (stats != null && statsScale.equals("p99")) {
+			max = stats.dataset().percentile(99, bandIndexes);
+		}
 		if (externalMax != -1) {
 			max = externalMax;
 		}
@@ -61,23 +121,147 @@ public class BandExtractor {
 		
 		if (imageType.equals("none")) return;
 		
-		if (max > 0) {
-			for (int i = 0; i < w; i++) for (int j = 0; j < h; j++) {
-				int[] samples = r.getPixel(i, j, new int[8]);
-				for (int b: bandIndexes) {
-					int m = samples[b];
-					if (m > max) m = max;
-					int c = (int)((double)m / max * 255);
-					c = (c << 16) | (c << 8) | c;
-					bandImgs[b].setRGB(i, j, c);
+		// png and tif are written strip by strip, other formats are created in memory by ImageIO
+		boolean streamed = StripWriter.supports(imageType);
+		BufferedImage[] bandImgs = new BufferedImage[8];
+		if (!streamed) {
+			for (int b: bandIndexes) bandImgs[b] = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		}
+		for (int y = y0; y < y1; y = stripEnd(y, y1, stripRows)) {
+			final int rows = stripEnd(y, y1, stripRows) - y;
+			final boolean first = y == y0;
+			final boolean last = y + rows == y1;
+			// decoding this strip overlaps with encoding the previous one
+			TiffReader.Bands strip = src.read(x0, y, w, rows);
+			waitForEncoders();
+			for (final int b: bandIndexes) {
+				final int[] plane = strip.planes[b];
+				final int scaleMax = max;
+				if (!streamed) {
+					bandImgs[b].getRaster().setDataElements(0, y - y0, w, rows, toGrey(plane, scaleMax));
+					continue;
 				}
+				final StripWriter writer = writers[b];
+				final File out = outFile(outDir, name, b);
+				final int width = w, height = h;
+				pending.add(encoders.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						if (first) writer.start(out, width, height);
+						writer.writeRows(toGrey(plane, scaleMax), rows);
+						if (last) writer.finish();
+						return null;
+					}
+				}));
 			}
 		}
-		for (int b: bandIndexes) {
-			String outName = name + "_b" + (b+1);
-			outName += "." + imageType;
-			File out = new File(outDir, outName);
-			ImageIO.write(bandImgs[b], imageType, out);
+		if (!streamed) {
+			for (int b: bandIndexes) writeImage(bandImgs[b], outFile(outDir, name, b));
+		}
+	}
+	
+	private static byte[] toGrey(int[] plane, int max) {
+		byte[] grey = new byte[plane.length];
+		if (max <= 0) return grey;
+		for (int k = 0; k < grey.length; k++) {
+			int m = plane[k];
+			if (m > max) m = max;
+			grey[k] = (byte)(int)((double)m / max * 255);
+		}
+		return grey;
+	}
+	
+	// Waits until the bands of the previous strip are written
+	private void waitForEncoders() throws Exception {
+		try {
+			for (Future<Void> f: pending) f.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+			throw e;
+		}
+		finally {
+			pending.clear();
+		}
+	}
+	
+	// Writes an image of a type StripWriter doesn't handle with a reused ImageIO writer
+	private void writeImage(BufferedImage img, File out) throws Exception {
+		ImageWriter writer = imageWriters.get(imageType);
+		if (writer == null) {
+			Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(imageType);
+			if (!it.hasNext()) throw new Exception("No image writer found for type " + imageType);
+			writer = it.next();
+			imageWriters.put(imageType, writer);
+		}
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (compressionLevel >= 0 && param.canWriteCompressed()) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			if (param.getCompressionType() == null) param.setCompressionType(param.getCompressionTypes()[0]);
+			param.setCompressionQuality(1 - compressionLevel / 9f);
+		}
+		out.delete();
+		ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+		try {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(img, null, null), param);
+		}
+		finally {
+			ios.close();
+			writer.reset();
+		}
+	}
+	
+	private static int stripEnd(int y, int y1, int stripRows) {
+		return Math.min(y1, (y / stripRows + 1) * stripRows);
+	}
+	
+	private File outFile(File outDir, String name, int b) {
+		String outName = name + "_b" + (b+1);
+		outName += "." + imageType;
+		return new File(outDir, outName);
+	}
+	
+	// Reads strips of the input with TiffReader or, for files it can't handle, from the whole image read by ImageIO
+	static class BandSource {
+		private TiffReader reader;
+		private TiffReader.Bands all;
+		public int width;
+		public int height;
+		public int bandCnt;
+		public int blockHeight;
+		
+		public BandSource(File f) throws Exception {
+			try {
+				reader = TiffReader.open(f);
+				width = reader.getWidth();
+				height = reader.getHeight();
+				bandCnt = reader.getBandCount();
+				blockHeight = reader.getBlockHeight();
+			}
+			catch (UnsupportedOperationException e) {
+				all = TiffReader.readWithImageIO(f);
+				width = all.width;
+				height = all.height;
+				bandCnt = all.planes.length;
+				blockHeight = 1;
+			}
+		}
+		
+		public TiffReader.Bands read(int x, int y, int w, int h) throws Exception {
+			if (reader != null) return reader.read(x, y, w, h);
+			TiffReader.Bands ret = new TiffReader.Bands(w, h, bandCnt);
+			ret.bitsPerSample = all.bitsPerSample;
+			for (int b = 0; b < bandCnt; b++) {
+				for (int j = 0; j < h; j++) {
+					System.arraycopy(all.planes[b], x + (y + j) * width, ret.planes[b], j * w, w);
+				}
+			}
+			return ret;
+		}
+		
+		public void close() throws Exception {
+			if (reader != null) reader.close();
 		}
 	}
 	
@@ -87,12 +271,20 @@ public class BandExtractor {
 		String out = null;//"c:/tmp/b";
 		int max = -1;
 		String bands = "12345678";
+		String region = null;
+		String statsPath = null;
+		String statsScale = "image";
+		int compression = -1;
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equals("-in")) in = args[i+1];
 			else if (args[i].equals("-out")) out = args[i+1];
 			else if (args[i].equals("-type")) type = args[i+1];
 			else if (args[i].equals("-max")) max = Integer.parseInt(args[i+1]);
 			else if (args[i].equals("-bands")) bands = args[i+1];
+			else if (args[i].equals("-region")) region = args[i+1];
+			else if (args[i].equals("-band-stats")) statsPath = args[i+1];
+			else if (args[i].equals("-stats-scale")) statsScale = args[i+1];
+			else if (args[i].equals("-compression")) compression = Integer.parseInt(args[i+1]);
 		}
 		if (in == null) exit("-in not set");
 		if (out == null) exit("-out not set");
@@ -103,14 +295,47 @@ public class BandExtractor {
 		
 		BandExtractor be = new BandExtractor(bands);
 		be.imageType = type;
+		if (region != null) {
+			String[] parts = region.split(",");
+			if (parts.length != 4) exit("Invalid region, use -region x,y,w,h: " + region);
+			be.region = new int[4];
+			for (int i = 0; i < 4; i++) be.region[i] = Integer.parseInt(parts[i].trim());
+		}
+		if (!statsScale.equals("image") && !statsScale.equals("dataset") && !statsScale.equals("p99")) {
+			exit("Invalid -stats-scale, use image, dataset or p99: " + statsScale);
+		}
+		be.statsScale = statsScale;
+		if (compression < -1 || compression > 9) exit("Invalid -compression, use 0..9: " + compression);
+		be.compressionLevel = compression;
+		if (StripWriter.supports(type)) {
+			for (int b: be.bandIndexes) be.writers[b] = StripWriter.create(type, compression);
+		}
+		be.encoders = Executors.newFixedThreadPool(Math.min(be.bandIndexes.size(), Runtime.getRuntime().availableProcessors()));
+		if (statsPath != null) {
+			if (!new File(statsPath).exists()) exit("Band statistics file not found: " + statsPath);
+			be.stats = BandStats.load(new File(statsPath));
+		}
+		else {
+			// the cache next to the input images, if there is one
+			be.stats = BandStats.loadSidecar(inFile.isDirectory() ? inFile : inFile.getAbsoluteFile().getParentFile());
+		}
+		if (be.stats == null && !statsScale.equals("image")) exit("-stats-scale " + statsScale + " needs band statistics, run BandStats first.");
 		
-		if (inFile.isDirectory()) {
-			for (File f: inFile.listFiles()) {
-				be.process(f, outDir, max);
+		try {
+			if (inFile.isDirectory()) {
+				for (File f: inFile.listFiles()) {
+					if (f.getName().equals(BandStats.FILE_NAME)) continue;
+					be.process(f, outDir, max);
+				}
+			}
+			else {
+				be.process(inFile, outDir, max);
 			}
+			be.waitForEncoders();
 		}
-		else {
-			be.process(inFile, outDir, max);
+		finally {
+			// on an error the pending encodes are dropped, the pool would keep the JVM running
+			be.encoders.shutdownNow();
 		}
 	}
 
@@ -0,0 +1,338 @@
+package visualizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Per band pixel value statistics of images: minimum, maximum, percentiles and a histogram.
+ * Statistics are computed by the main() of this class and kept in a cache file next to the
+ * images, so the visualizer and BandExtractor can get normalisation constants without reading
+ * every pixel again. An entry of the cache is valid as long as the modification time and size
+ * of its image file don't change.
+ *
+ * Cache format, one line per image and band:
+ *   image,mtime,length,band,min,max,p1,p2,p50,p98,p99,histogram
+ * where histogram is a space separated list of bin:count pairs of the non-empty bins.
+ */
+public class BandStats {
+	public static final String FILE_NAME = "band-stats.csv";
+	public static final double[] PERCENTILES = {1, 2, 50, 98, 99};
+	private static final int BIN_SHIFT = 4; // histogram bins are 16 values wide
+	private static final int BIN_CNT = 65536 >> BIN_SHIFT;
+
+	private Map<String, ImageStats> nameToStats = new TreeMap<>();
+	private ImageStats dataset;
+
+	public static class ImageStats {
+		public String name;
+		public long mtime;
+		public long length;
+		public int[] min;
+		public int[] max;
+		public int[][] percentiles; // [band][index in PERCENTILES]
+		public long[][] histogram;  // [band][bin], up to the bin of the band's maximum
+
+		public int bandCount() {
+			return min.length;
+		}
+
+		// The largest maximum of the given bands (0-based), all bands if null
+		public int max(List<Integer> bands) {
+			int ret = 0;
+			for (int b = 0; b < max.length; b++) {
+				if (bands == null || bands.contains(b)) ret = Math.max(ret, max[b]);
+			}
+			return ret;
+		}
+
+		// The largest value of a percentile of the given bands (0-based), all bands if null
+		public int percentile(double p, List<Integer> bands) {
+			int pI = -1;
+			for (int i = 0; i < PERCENTILES.length; i++) if (PERCENTILES[i] == p) pI = i;
+			if (pI == -1) throw new IllegalArgumentException("Percentile not stored: " + p);
+			int ret = 0;
+			for (int b = 0; b < max.length; b++) {
+				if (bands == null || bands.contains(b)) ret = Math.max(ret, percentiles[b][pI]);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Loads a cache file, returns an empty cache if it doesn't exist.
+	 */
+	public static BandStats load(File f) throws Exception {
+		BandStats ret = new BandStats();
+		if (!f.exists()) return ret;
+		List<String> lines = Utils.readTextLines(f.getPath());
+		Map<String, Integer> nameToBandCnt = new HashMap<>();
+		for (String line: lines) {
+			String[] parts = line.split(",");
+			Integer cnt = nameToBandCnt.get(parts[0]);
+			nameToBandCnt.put(parts[0], Math.max(cnt == null ? 0 : cnt, Integer.parseInt(parts[3])));
+		}
+		for (String line: lines) {
+			String[] parts = line.split(",");
+			String name = parts[0];
+			int band = Integer.parseInt(parts[3]) - 1;
+			ImageStats s = ret.nameToStats.get(name);
+			if (s == null) {
+				s = newStats(name, nameToBandCnt.get(name));
+				s.mtime = Long.parseLong(parts[1]);
+				s.length = Long.parseLong(parts[2]);
+				ret.nameToStats.put(name, s);
+			}
+			s.min[band] = Integer.parseInt(parts[4]);
+			s.max[band] = Integer.parseInt(parts[5]);
+			s.histogram[band] = new long[(s.max[band] >> BIN_SHIFT) + 1];
+			for (int i = 0; i < PERCENTILES.length; i++) s.percentiles[band][i] = Integer.parseInt(parts[6 + i]);
+			if (parts.length > 6 + PERCENTILES.length) {
+				for (String bin: parts[6 + PERCENTILES.length].trim().split(" ")) {
+					if (bin.isEmpty()) continue;
+					int pos = bin.indexOf(':');
+					s.histogram[band][Integer.parseInt(bin.substring(0, pos))] = Long.parseLong(bin.substring(pos + 1));
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Loads the cache of the directory of the given images if there is one, returns null
+	 * otherwise.
+	 */
+	public static BandStats loadSidecar(File imageDir) {
+		File f = new File(imageDir, FILE_NAME);
+		if (!f.exists()) return null;
+		try {
+			return load(f);
+		}
+		catch (Exception e) {
+			System.out.println("Error reading band statistics from " + f.getAbsolutePath() + ", not using it.");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// Number of images in the cache
+	public int size() {
+		return nameToStats.size();
+	}
+
+	public void save(File f) throws Exception {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+		try {
+			out.println("# Band statistics, written by visualizer.BandStats. Entries are valid while the image's mtime and length match.");
+			out.println("# image,mtime,length,band,min,max,p1,p2,p50,p98,p99,histogram (bin:count, bins are " + (1 << BIN_SHIFT) + " values wide)");
+			for (ImageStats s: nameToStats.values()) {
+				for (int b = 0; b < s.bandCount(); b++) {
+					StringBuilder sb = new StringBuilder();
+					sb.append(s.name).append(',').append(s.mtime).append(',').append(s.length);
+					sb.append(',').append(b + 1).append(',').append(s.min[b]).append(',').append(s.max[b]);
+					for (int p: s.percentiles[b]) sb.append(',').append(p);
+					sb.append(',');
+					boolean first = true;
+					for (int i = 0; i < s.histogram[b].length; i++) {
+						if (s.histogram[b][i] == 0) continue;
+						if (!first) sb.append(' ');
+						sb.append(i).append(':').append(s.histogram[b][i]);
+						first = false;
+					}
+					out.println(sb);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Statistics of an image if they are in the cache and the file hasn't changed since,
+	 * null otherwise.
+	 */
+	public ImageStats get(File image) {
+		ImageStats s = nameToStats.get(image.getName());
+		if (s == null || s.mtime != image.lastModified() || s.length != image.length()) return null;
+		return s;
+	}
+
+	/**
+	 * Statistics of all images in the cache together. Percentiles are calculated from the
+	 * histograms so they are accurate to the bin width.
+	 */
+	public synchronized ImageStats dataset() {
+		if (dataset != null) return dataset;
+		int bandCnt = 0;
+		for (ImageStats s: nameToStats.values()) bandCnt = Math.max(bandCnt, s.bandCount());
+		ImageStats ret = newStats("dataset", bandCnt);
+		for (int b = 0; b < bandCnt; b++) {
+			ret.histogram[b] = new long[BIN_CNT];
+			ret.min[b] = Integer.MAX_VALUE;
+			for (ImageStats s: nameToStats.values()) {
+				if (b >= s.bandCount()) continue;
+				ret.min[b] = Math.min(ret.min[b], s.min[b]);
+				ret.max[b] = Math.max(ret.max[b], s.max[b]);
+				for (int i = 0; i < s.histogram[b].length; i++) ret.histogram[b][i] += s.histogram[b][i];
+			}
+			if (ret.min[b] == Integer.MAX_VALUE) ret.min[b] = 0;
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				int bin = percentile(ret.histogram[b], PERCENTILES[i]);
+				// the upper end of the bin, but not above the real maximum
+				ret.percentiles[b][i] = Math.min(ret.max[b], (bin << BIN_SHIFT) + (1 << BIN_SHIFT) - 1);
+			}
+		}
+		dataset = ret;
+		return ret;
+	}
+
+	private static ImageStats newStats(String name, int bandCnt) {
+		ImageStats s = new ImageStats();
+		s.name = name;
+		s.min = new int[bandCnt];
+		s.max = new int[bandCnt];
+		s.percentiles = new int[bandCnt][PERCENTILES.length];
+		s.histogram = new long[bandCnt][];
+		return s;
+	}
+
+	/**
+	 * Reads all pixels of an image strip by strip and calculates its statistics. Values are
+	 * clipped to the 0..65535 range.
+	 */
+	public static ImageStats compute(File image) throws Exception {
+		BandExtractor.BandSource src = new BandExtractor.BandSource(image);
+		try {
+			int bandCnt = src.bandCnt;
+			ImageStats s = newStats(image.getName(), bandCnt);
+			s.mtime = image.lastModified();
+			s.length = image.length();
+			int[][] counts = new int[bandCnt][65536];
+			int stripRows = Math.max(src.blockHeight, (1 << 20) / (src.width * bandCnt) / src.blockHeight * src.blockHeight);
+			for (int y = 0; y < src.height; y += stripRows) {
+				int rows = Math.min(stripRows, src.height - y);
+				TiffReader.Bands strip = src.read(0, y, src.width, rows);
+				for (int b = 0; b < bandCnt; b++) {
+					int[] c = counts[b];
+					for (int v: strip.planes[b]) c[Math.max(0, Math.min(65535, v))]++;
+				}
+			}
+			for (int b = 0; b < bandCnt; b++) {
+				int[] c = counts[b];
+				int min = 0;
+				while (min < 65535 && c[min] == 0) min++;
+				int max = 65535;
+				while (max > 0 && c[max] == 0) max--;
+				s.min[b] = min;
+				s.max[b] = max;
+				long[] exact = new long[65536];
+				s.histogram[b] = new long[(max >> BIN_SHIFT) + 1];
+				for (int v = 0; v <= max; v++) {
+					exact[v] = c[v];
+					s.histogram[b][v >> BIN_SHIFT] += c[v];
+				}
+				for (int i = 0; i < PERCENTILES.length; i++) s.percentiles[b][i] = percentile(exact, PERCENTILES[i]);
+			}
+			return s;
+		}
+		finally {
+			src.close();
+		}
+	}
+
+	// The smallest index where the cumulative count reaches p percent of the total
+	private static int percentile(long[] histogram, double p) {
+		long total = 0;
+		for (long c: histogram) total += c;
+		if (total == 0) return 0;
+		double limit = p / 100 * total;
+		long sum = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			sum += histogram[i];
+			if (sum >= limit) return i;
+		}
+		return histogram.length - 1;
+	}
+
+	/**
+	 * Updates the cache of a directory: images that are not in it or have changed are read
+	 * in parallel, then the statistics of the whole dataset are printed.
+	 *  -in <directory>  [-threads <n>]  [-out <cache file>]
+	 */
+	public static void main(String[] args) throws Exception {
+		String in = null;
+		String out = null;
+		int threadCnt = Runtime.getRuntime().availableProcessors();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-in")) in = args[i+1];
+			else if (args[i].equals("-out")) out = args[i+1];
+			else if (args[i].equals("-threads")) threadCnt = Integer.parseInt(args[i+1]);
+		}
+		if (in == null) exit("-in not set");
+		File dir = new File(in);
+		if (!dir.isDirectory()) exit("Not a directory: " + in);
+		File cacheFile = out != null ? new File(out) : new File(dir, FILE_NAME);
+
+		long start = System.currentTimeMillis();
+		BandStats cache = load(cacheFile);
+		BandStats stats = new BandStats();
+		List<Future<ImageStats>> futures = new ArrayList<>();
+		ExecutorService pool = Executors.newFixedThreadPool(threadCnt);
+		int cached = 0;
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (final File f: files) {
+			if (!f.getName().endsWith(".tif")) continue;
+			ImageStats s = cache.get(f);
+			if (s != null) {
+				stats.nameToStats.put(f.getName(), s);
+				cached++;
+				continue;
+			}
+			futures.add(pool.submit(new Callable<ImageStats>() {
+				@Override
+				public ImageStats call() throws Exception {
+					return compute(f);
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<ImageStats> fu: futures) {
+			ImageStats s = fu.get();
+			stats.nameToStats.put(s.name, s);
+		}
+		stats.save(cacheFile);
+
+		System.out.println("Images: " + stats.nameToStats.size() + " (" + futures.size() + " read, " + cached + " from cache) in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		System.out.println("Cache : " + cacheFile.getPath());
+		if (stats.nameToStats.isEmpty()) return;
+		ImageStats d = stats.dataset();
+		StringBuilder header = new StringBuilder("band\tmin\tmax");
+		for (double p: PERCENTILES) header.append("\tp").append(Utils.f(p));
+		System.out.println(header);
+		for (int b = 0; b < d.bandCount(); b++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(b + 1).append('\t').append(d.min[b]).append('\t').append(d.max[b]);
+			for (int p: d.percentiles[b]) sb.append('\t').append(p);
+			System.out.println(sb);
+		}
+	}
+
+	private static void exit(String s) {
+		System.out.println(s);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,168 @@
+package visualizer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary, memory mapped form of a truth file. Everything that parsing the CSV would compute is
+ * stored: polygons are grouped by image, coordinates are packed and polygon areas and bounds
+ * are precomputed.
+ *
+ * Layout (big endian):
+ *   header   : magic, version, image count, polygon count, ring count, point count (6 ints)
+ *   images   : first polygon index of each image, (image count + 1) ints
+ *   polygons : first ring index of each polygon, (polygon count + 1) ints
+ *   rings    : first point index of each ring, (ring count + 1) ints
+ *   padding to 8 bytes
+ *   areas    : polygon count doubles
+ *   bounds   : minx, miny, maxx, maxy per polygon, 4 * polygon count doubles
+ *   points   : x, y per point, 2 * point count doubles
+ *   image ids: UTF-8 strings in DataOutput.writeUTF format
+ */
+public class CompiledTruth {
+	private static final int MAGIC = 0x534E5454; // "SNTT"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 6 * 4;
+
+	private int imageCnt;
+	private int polygonCnt;
+	private int ringCnt;
+	private int pointCnt;
+	private String[] imageIds;
+	private Map<String, Integer> idToIndex = new HashMap<>();
+	private IntBuffer imagePolygonStart;
+	private IntBuffer polygonRingStart;
+	private IntBuffer ringPointStart;
+	private DoubleBuffer areas;
+	private DoubleBuffer bounds;
+	private DoubleBuffer points;
+
+	/**
+	 * Writes the compiled file. Arrays are in the same format that the accessors of this
+	 * class return, start index arrays have one extra element at the end.
+	 */
+	public static void write(File out, String[] imageIds, int[] imagePolygonStart, int[] polygonRingStart,
+			int[] ringPointStart, double[] areas, double[] bounds, double[] points) throws Exception {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(imageIds.length);
+			dos.writeInt(areas.length);
+			dos.writeInt(ringPointStart.length - 1);
+			dos.writeInt(points.length / 2);
+			for (int i: imagePolygonStart) dos.writeInt(i);
+			for (int i: polygonRingStart) dos.writeInt(i);
+			for (int i: ringPointStart) dos.writeInt(i);
+			if (dos.size() % 8 != 0) dos.writeInt(0);
+			for (double d: areas) dos.writeDouble(d);
+			for (double d: bounds) dos.writeDouble(d);
+			for (double d: points) dos.writeDouble(d);
+			for (String id: imageIds) dos.writeUTF(id);
+		}
+		finally {
+			dos.close();
+		}
+	}
+
+	public static boolean isCompiled(String path) {
+		if (path == null) return false;
+		File f = new File(path);
+		if (!f.isFile() || f.length() < HEADER_SIZE) return false;
+		try {
+			DataInputStream dis = new DataInputStream(new FileInputStream(f));
+			try {
+				return dis.readInt() == MAGIC;
+			}
+			finally {
+				dis.close();
+			}
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	public static CompiledTruth open(File f) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		MappedByteBuffer buf;
+		try {
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally {
+			raf.close(); // the mapping stays valid
+		}
+		if (buf.getInt() != MAGIC) throw new Exception("Not a compiled truth file: " + f.getAbsolutePath());
+		int version = buf.getInt();
+		if (version != VERSION) throw new Exception("Unsupported compiled truth version: " + version);
+
+		CompiledTruth ct = new CompiledTruth();
+		ct.imageCnt = buf.getInt();
+		ct.polygonCnt = buf.getInt();
+		ct.ringCnt = buf.getInt();
+		ct.pointCnt = buf.getInt();
+		ct.imagePolygonStart = intSection(buf, ct.imageCnt + 1);
+		ct.polygonRingStart = intSection(buf, ct.polygonCnt + 1);
+		ct.ringPointStart = intSection(buf, ct.ringCnt + 1);
+		if (buf.position() % 8 != 0) buf.getInt();
+		ct.areas = doubleSection(buf, ct.polygonCnt);
+		ct.bounds = doubleSection(buf, 4 * ct.polygonCnt);
+		ct.points = doubleSection(buf, 2 * ct.pointCnt);
+		ct.imageIds = new String[ct.imageCnt];
+		for (int i = 0; i < ct.imageCnt; i++) {
+			int len = buf.getShort() & 0xffff;
+			byte[] bytes = new byte[len];
+			buf.get(bytes);
+			ct.imageIds[i] = new String(bytes, "UTF-8");
+			ct.idToIndex.put(ct.imageIds[i], i);
+		}
+		return ct;
+	}
+
+	private static IntBuffer intSection(ByteBuffer buf, int cnt) {
+		ByteBuffer b = buf.slice();
+		b.limit(cnt * 4);
+		buf.position(buf.position() + cnt * 4);
+		return b.asIntBuffer();
+	}
+
+	private static DoubleBuffer doubleSection(ByteBuffer buf, int cnt) {
+		ByteBuffer b = buf.slice();
+		b.limit(cnt * 8);
+		buf.position(buf.position() + cnt * 8);
+		return b.asDoubleBuffer();
+	}
+
+	public int imageCount() { return imageCnt; }
+	public int polygonCount() { return polygonCnt; }
+	public String imageId(int image) { return imageIds[image]; }
+	public int indexOf(String imageId) {
+		Integer i = idToIndex.get(imageId);
+		return i == null ? -1 : i;
+	}
+	public int firstPolygon(int image) { return imagePolygonStart.get(image); }
+	public int endPolygon(int image) { return imagePolygonStart.get(image + 1); }
+	public int firstRing(int polygon) { return polygonRingStart.get(polygon); }
+	public int endRing(int polygon) { return polygonRingStart.get(polygon + 1); }
+	public int firstPoint(int ring) { return ringPointStart.get(ring); }
+	public int endPoint(int ring) { return ringPointStart.get(ring + 1); }
+	public double area(int polygon) { return areas.get(polygon); }
+	public double minx(int polygon) { return bounds.get(4 * polygon); }
+	public double miny(int polygon) { return bounds.get(4 * polygon + 1); }
+	public double maxx(int polygon) { return bounds.get(4 * polygon + 2); }
+	public double maxy(int polygon) { return bounds.get(4 * polygon + 3); }
+	public double x(int point) { return points.get(2 * point); }
+	public double y(int point) { return points.get(2 * point + 1); }
+}
@@ -0,0 +1,304 @@
+package visualizer;
+
+import static visualizer.Utils.f;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Generates a synthetic data set in the format of the contest data: truth and solution CSV
+ * files and matching 3-band and 8-band images. Buildings are star shaped polygons on a
+ * jittered grid, optionally with a hole. The solution is the truth with noise: moved
+ * vertices, dropped buildings and false positives. The same seed gives the same data set.
+ */
+public class DataGenerator {
+	private int imageCnt = 100;
+	private int buildingsPerImage = 50;
+	private int minVertices = 4;
+	private int maxVertices = 12;
+	private double holeRatio = 0.1; // fraction of buildings with a hole
+	private double jitter = 2; // maximum vertex displacement in the solution, in pixels
+	private double dropRatio = 0.1; // fraction of buildings missing from the solution
+	private double fpRatio = 0.1; // false positives per image, as a fraction of the buildings
+	private int size = 400; // width and height of the 3-band images
+	private boolean withImages = true;
+	private long seed = 1;
+
+	private Random rnd; // polygons
+	private Random pixelRnd; // image noise, separate so the polygons don't depend on -no-images
+
+	private void generate(File outDir) throws Exception {
+		rnd = new Random(seed);
+		pixelRnd = new Random(seed + 1);
+		File dir3 = new File(outDir, "3band");
+		File dir8 = new File(outDir, "8band");
+		if (withImages) {
+			dir3.mkdirs();
+			dir8.mkdirs();
+		}
+		PrintWriter truth = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, "truth.csv")), "UTF-8"));
+		PrintWriter solution = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, "solution.csv")), "UTF-8"));
+		truth.println("ImageId,BuildingId,PolygonWKT_Pix,PolygonWKT_Geo");
+		solution.println("ImageId,BuildingId,PolygonWKT_Pix,Confidence");
+		int digits = String.valueOf(imageCnt - 1).length();
+		long polygonCnt = 0;
+		for (int i = 0; i < imageCnt; i++) {
+			String id = String.format("synth_%0" + digits + "d", i);
+			List<double[][][]> buildings = buildings();
+			for (int b = 0; b < buildings.size(); b++) {
+				truth.println(id + "," + (b + 1) + ",\"" + wkt(buildings.get(b)) + "\",\"POLYGON ((0 0 0))\"");
+			}
+			if (buildings.isEmpty()) truth.println(id + ",-1,POLYGON EMPTY,POLYGON EMPTY");
+
+			int sId = 0;
+			for (double[][][] b: buildings) {
+				if (rnd.nextDouble() < dropRatio) continue;
+				double conf = 0.5 + 0.5 * rnd.nextDouble();
+				solution.println(id + "," + (++sId) + ",\"" + wkt(jittered(b)) + "\"," + f(conf));
+			}
+			int fpCnt = (int)Math.round(fpRatio * buildingsPerImage);
+			for (int k = 0; k < fpCnt; k++) {
+				double r = 5 + rnd.nextDouble() * size / 20.0;
+				double[][][] b = building(r + rnd.nextDouble() * (size - 2 * r), r + rnd.nextDouble() * (size - 2 * r), r, false);
+				solution.println(id + "," + (++sId) + ",\"" + wkt(b) + "\"," + f(0.6 * rnd.nextDouble()));
+			}
+			if (sId == 0) solution.println(id + ",-1,POLYGON EMPTY,1");
+			polygonCnt += buildings.size();
+
+			if (withImages) writeImages(id, buildings, dir3, dir8);
+		}
+		truth.close();
+		solution.close();
+		System.out.println("Generated " + imageCnt + " images, " + polygonCnt + " buildings in " + outDir.getPath());
+	}
+
+	// Buildings of one image, each building is a list of rings, each ring is {xs, ys}
+	private List<double[][][]> buildings() {
+		List<double[][][]> ret = new Vector<>();
+		int n = (int)Math.ceil(Math.sqrt(buildingsPerImage));
+		double cell = (double) size / n;
+		for (int k = 0; k < buildingsPerImage; k++) {
+			// one building per grid cell, so they don't overlap
+			double r = cell / 2 * (0.4 + 0.4 * rnd.nextDouble());
+			double cx = (k % n + 0.5) * cell + (cell / 2 - r) * (2 * rnd.nextDouble() - 1);
+			double cy = (k / n + 0.5) * cell + (cell / 2 - r) * (2 * rnd.nextDouble() - 1);
+			ret.add(building(cx, cy, r, rnd.nextDouble() < holeRatio));
+		}
+		return ret;
+	}
+
+	// Star shaped polygon: vertices at increasing angles and 0.7 .. 1 times the radius, so it is simple
+	private double[][][] building(double cx, double cy, double r, boolean withHole) {
+		double[][][] ret = new double[withHole ? 2 : 1][][];
+		ret[0] = ring(cx, cy, r, 0.7, minVertices + rnd.nextInt(maxVertices - minVertices + 1));
+		if (withHole) ret[1] = ring(cx, cy, 0.15 * r, 1, 4); // inside the outer ring whatever its vertices
+		return ret;
+	}
+
+	private double[][] ring(double cx, double cy, double r, double minRatio, int vertexCnt) {
+		double[] xs = new double[vertexCnt + 1];
+		double[] ys = new double[vertexCnt + 1];
+		double start = rnd.nextDouble() * 2 * Math.PI;
+		for (int i = 0; i < vertexCnt; i++) {
+			double a = start + 2 * Math.PI * (i + 0.2 + 0.6 * rnd.nextDouble()) / vertexCnt;
+			double d = r * (minRatio + (1 - minRatio) * rnd.nextDouble());
+			xs[i] = round(cx + d * Math.cos(a));
+			ys[i] = round(cy + d * Math.sin(a));
+		}
+		xs[vertexCnt] = xs[0]; // closed
+		ys[vertexCnt] = ys[0];
+		return new double[][] {xs, ys};
+	}
+
+	private double[][][] jittered(double[][][] b) {
+		double dx = jitter * (2 * rnd.nextDouble() - 1);
+		double dy = jitter * (2 * rnd.nextDouble() - 1);
+		double[][][] ret = new double[b.length][][];
+		for (int rI = 0; rI < b.length; rI++) {
+			int n = b[rI][0].length;
+			double[] xs = new double[n];
+			double[] ys = new double[n];
+			for (int i = 0; i < n - 1; i++) {
+				xs[i] = round(b[rI][0][i] + dx + jitter / 2 * (2 * rnd.nextDouble() - 1));
+				ys[i] = round(b[rI][1][i] + dy + jitter / 2 * (2 * rnd.nextDouble() - 1));
+			}
+			xs[n - 1] = xs[0];
+			ys[n - 1] = ys[0];
+			ret[rI] = new double[][] {xs, ys};
+		}
+		return ret;
+	}
+
+	private static double round(double d) {
+		return Math.round(d * 100) / 100.0;
+	}
+
+	private static String wkt(double[][][] b) {
+		StringBuilder sb = new StringBuilder("POLYGON (");
+		for (int rI = 0; rI < b.length; rI++) {
+			if (rI > 0) sb.append(",");
+			sb.append("(");
+			for (int i = 0; i < b[rI][0].length; i++) {
+				if (i > 0) sb.append(",");
+				sb.append(f(b[rI][0][i])).append(" ").append(f(b[rI][1][i])).append(" 0");
+			}
+			sb.append(")");
+		}
+		return sb.append(")").toString();
+	}
+
+	/**
+	 * Draws the buildings over a noisy background. The 8-band image has a quarter of the
+	 * resolution and 11-bit values like WorldView-2 data, its bands are mixes of the RGB values.
+	 */
+	private void writeImages(String id, List<double[][][]> buildings, File dir3, File dir8) throws Exception {
+		BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[size];
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				int g = 60 + (x + y) * 40 / size + pixelRnd.nextInt(30);
+				row[x] = ((g - 10) << 16) | (g << 8) | (g - 20);
+			}
+			img.setRGB(0, y, size, 1, row, 0, size);
+		}
+		Graphics2D g2 = img.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		for (double[][][] b: buildings) {
+			Path2D path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+			for (double[][] ring: b) {
+				path.moveTo(ring[0][0], ring[1][0]);
+				for (int i = 1; i < ring[0].length; i++) path.lineTo(ring[0][i], ring[1][i]);
+				path.closePath();
+			}
+			int v = 150 + pixelRnd.nextInt(100);
+			g2.setColor(new Color(v, v - pixelRnd.nextInt(40), v - pixelRnd.nextInt(60)));
+			g2.fill(path);
+		}
+		g2.dispose();
+
+		int[][] rgb = new int[3][size * size];
+		for (int y = 0; y < size; y++) {
+			img.getRGB(0, y, size, 1, row, 0, size);
+			for (int x = 0; x < size; x++) {
+				int c = row[x];
+				rgb[0][x + y * size] = (c >> 16) & 0xff;
+				rgb[1][x + y * size] = (c >> 8) & 0xff;
+				rgb[2][x + y * size] = c & 0xff;
+			}
+		}
+		writeTiff(new File(dir3, "3band_" + id + ".tif"), size, size, 8, rgb);
+
+		int s8 = size / 4;
+		int[][] bands = new int[8][s8 * s8];
+		double[][] mix = { // coastal, blue, green, yellow, red, red edge, NIR1, NIR2 from r, g, b
+				{0.1, 0.2, 0.7}, {0, 0.1, 0.9}, {0.1, 0.8, 0.1}, {0.5, 0.5, 0},
+				{0.9, 0.1, 0}, {0.6, 0.4, 0}, {0.3, 0.6, 0.1}, {0.2, 0.7, 0.1}};
+		for (int y = 0; y < s8; y++) {
+			for (int x = 0; x < s8; x++) {
+				int k = 4 * x + 4 * y * size; // top left pixel of the 4x4 block
+				for (int b = 0; b < 8; b++) {
+					double v = mix[b][0] * rgb[0][k] + mix[b][1] * rgb[1][k] + mix[b][2] * rgb[2][k];
+					bands[b][x + y * s8] = Math.min(2047, (int)(v * 7) + pixelRnd.nextInt(64));
+				}
+			}
+		}
+		writeTiff(new File(dir8, "8band_" + id + ".tif"), s8, s8, 16, bands);
+	}
+
+	// Uncompressed, pixel interleaved TIFF in a single strip
+	private static void writeTiff(File f, int w, int h, int bits, int[][] planes) throws Exception {
+		int n = planes.length;
+		int dataLen = w * h * n * bits / 8;
+		int entryCnt = n > 3 ? 11 : 10;
+		int ifd = 8 + dataLen + dataLen % 2;
+		int extra = ifd + 2 + 12 * entryCnt + 4; // values that don't fit in the entries
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		try {
+			out.write(new byte[] {'M', 'M'});
+			out.writeShort(42);
+			out.writeInt(ifd);
+			for (int k = 0; k < w * h; k++) {
+				for (int b = 0; b < n; b++) {
+					if (bits == 8) out.write(planes[b][k]);
+					else out.writeShort(planes[b][k]);
+				}
+			}
+			if (dataLen % 2 != 0) out.write(0);
+			out.writeShort(entryCnt);
+			entry(out, 256, 4, 1, w);
+			entry(out, 257, 4, 1, h);
+			if (n > 2) entry(out, 258, 3, n, extra);
+			else entry(out, 258, 3, n, bits << 16);
+			entry(out, 259, 3, 1, 1 << 16); // no compression
+			entry(out, 262, 3, 1, (n == 3 ? 2 : 1) << 16); // RGB or black is zero
+			entry(out, 273, 4, 1, 8);
+			entry(out, 277, 3, 1, n << 16);
+			entry(out, 278, 4, 1, h);
+			entry(out, 279, 4, 1, dataLen);
+			entry(out, 284, 3, 1, 1 << 16); // pixel interleaved
+			if (n > 3) entry(out, 338, 3, n - 3, extra + 2 * n); // extra samples, unspecified
+			out.writeInt(0); // no more directories
+			if (n > 2) {
+				for (int b = 0; b < n; b++) out.writeShort(bits);
+			}
+			if (n > 3) {
+				for (int b = 3; b < n; b++) out.writeShort(0);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static void entry(DataOutputStream out, int tag, int type, int cnt, int value) throws Exception {
+		out.writeShort(tag);
+		out.writeShort(type);
+		out.writeInt(cnt);
+		out.writeInt(value);
+	}
+
+	public static void main(String[] args) throws Exception {
+		DataGenerator g = new DataGenerator();
+		String out = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-out")) out = args[i+1];
+			else if (args[i].equals("-images")) g.imageCnt = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-buildings")) g.buildingsPerImage = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-vertices")) {
+				String[] parts = args[i+1].split("-");
+				g.minVertices = Integer.parseInt(parts[0]);
+				g.maxVertices = Integer.parseInt(parts[parts.length - 1]);
+			}
+			else if (args[i].equals("-holes")) g.holeRatio = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-jitter")) g.jitter = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-drop")) g.dropRatio = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-fp")) g.fpRatio = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-size")) g.size = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-seed")) g.seed = Long.parseLong(args[i+1]);
+			else if (args[i].equals("-no-images")) g.withImages = false;
+		}
+		if (out == null) exit("Output directory not set.");
+		if (g.minVertices < 3 || g.maxVertices < g.minVertices) exit("Invalid -vertices, use e.g. 4-12");
+		if (g.size < 40) exit("Image size too small: " + g.size);
+		File outDir = new File(out);
+		if (!outDir.isDirectory() && !outDir.mkdirs()) exit("Can't create output directory: " + out);
+		g.generate(outDir);
+	}
+
+	private static void exit(String s) {
+		System.out.println(s);
+		System.exit(1);
+	}
+}
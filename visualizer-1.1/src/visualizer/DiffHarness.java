@@ -0,0 +1,541 @@
+package visualizer;
+
+import static visualizer.Utils.f;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.LineNumberReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Differential check of alternative scoring engines against the exact java.awt.geom.Area
+ * based scoring. Random images are generated with the polygons that are hard to get right:
+ * holes, collinear and duplicate vertices, shared vertices, touching edges, overlaps that put
+ * the IOU exactly on the threshold, slivers around MIN_AREA, unclosed and self-intersecting
+ * rings. Each image goes through the CSV parser and is scored by the reference and by every
+ * engine. The TP/FP/FN and matches of the image must agree, and the IOU an engine gives every
+ * overlapping pair must not differ from the exact IOU by more than the engine's error bound
+ * for the pair. The images of differences found earlier are checked first, as regression
+ * cases. The first difference is shrunk to a minimal image and printed as truth and
+ * solution CSV lines, optionally written to files that the visualizer can open. Runs until
+ * the time budget is used up and exits with status 1 if a difference was found. The same
+ * seed generates the same images.
+ */
+public class DiffHarness {
+	private static final String IMAGE_ID = "diff";
+
+	private long seed = System.currentTimeMillis();
+	private double seconds = 60;
+	private double iouThreshold = new Scorer.Options().iouThreshold;
+	private double iouMargin = new Scorer.Options().iouMargin;
+	private File outDir; // reproducers are written here if it is set
+	private boolean closedOnly = false; // no unclosed rings, to look for differences of other polygons
+
+	private Random rnd;
+	private List<Engine> engines = new Vector<>();
+	private long pairCnt;
+
+	// A scoring implementation that must give the scores of the reference
+	private interface Engine {
+		public String name();
+		// Scores an image, the solution is sorted by decreasing confidence
+		public Metrics score(Polygon[] truth, Polygon[] solution);
+		public double iou(Polygon s, Polygon t);
+		// How far the engine's IOU of a pair may be from the exact one, its matching checks pairs within this of the threshold exactly
+		public double tolerance(Polygon s, Polygon t);
+	}
+
+	// Scorer with the given options, its pair IOU is the exact or the mask estimate
+	private static Engine scorerEngine(final String name, final Scorer.Options o) {
+		final Scorer scorer = new Scorer(o);
+		return new Engine() {
+			public String name() {
+				return name;
+			}
+
+			public Metrics score(Polygon[] truth, Polygon[] solution) {
+				return scorer.score(truth, solution, false);
+			}
+
+			public double iou(Polygon s, Polygon t) {
+				return o.fastIou ? Scorer.estimatedIou(s, t) : Scorer.iou(s, t);
+			}
+
+			public double tolerance(Polygon s, Polygon t) {
+				return o.fastIou ? Scorer.estimatedIouError(s, t) + o.iouMargin : 0;
+			}
+		};
+	}
+
+	// The polygons of an image as they are written to the CSV files, rings may be unclosed
+	private static class Case {
+		public List<Shape> truth = new Vector<>();
+		public List<Shape> solution = new Vector<>();
+
+		public Case copy() {
+			Case ret = new Case();
+			for (Shape s: truth) ret.truth.add(s.copy());
+			for (Shape s: solution) ret.solution.add(s.copy());
+			return ret;
+		}
+	}
+
+	private static class Shape {
+		public List<List<double[]>> rings = new Vector<>(); // outer ring first, then holes
+		public double confidence = 1;
+
+		public Shape copy() {
+			Shape ret = new Shape();
+			ret.confidence = confidence;
+			for (List<double[]> r: rings) {
+				List<double[]> points = new Vector<>();
+				for (double[] p: r) points.add(p.clone());
+				ret.rings.add(points);
+			}
+			return ret;
+		}
+
+		public String wkt() {
+			StringBuilder sb = new StringBuilder("\"POLYGON (");
+			for (int rI = 0; rI < rings.size(); rI++) {
+				if (rI > 0) sb.append(',');
+				sb.append('(');
+				List<double[]> r = rings.get(rI);
+				for (int i = 0; i < r.size(); i++) {
+					if (i > 0) sb.append(',');
+					sb.append(num(r.get(i)[0])).append(' ').append(num(r.get(i)[1])).append(" 0");
+				}
+				sb.append(')');
+			}
+			return sb.append(")\"").toString();
+		}
+	}
+
+	private void run() throws Exception {
+		rnd = new Random(seed);
+		engines.add(scorerEngine("fast", fastOptions()));
+		System.out.println("Seed " + seed + ", engines: " + engineNames() + ", budget " + f(seconds) + " s");
+		long deadline = System.nanoTime() + (long) (seconds * 1e9);
+		List<Case> regressions = regressions();
+		long caseCnt = 0;
+		while (System.nanoTime() < deadline || caseCnt < regressions.size()) {
+			Case c = caseCnt < regressions.size() ? regressions.get((int) caseCnt) : generate();
+			caseCnt++;
+			for (Engine e: engines) {
+				String diff = check(c, e);
+				if (diff == null) continue;
+				System.out.println("Image #" + caseCnt + ", " + e.name() + ": " + diff);
+				Case min = shrink(c, e, kind(diff));
+				System.out.println("Minimal image: " + check(min, e));
+				report(min);
+				exit("\nDifference found after " + caseCnt + " images, rerun with -seed " + seed + ".");
+			}
+		}
+		System.out.println(caseCnt + " images and " + pairCnt + " polygon pairs compared, no difference.");
+	}
+
+	// Images of differences found earlier, minimal as they were reported
+	private static List<Case> regressions() {
+		List<Case> ret = new Vector<>();
+		// seed 1: an 8x10 rectangle crosses so many pixel borders that the mask estimate of
+		// IOU 0.50003 was 0.4188, the fixed margin of the fast engine ruled the match out
+		Case c = new Case();
+		c.truth.add(rect(25.760028604723743, 72.90961379632705, 8, 10));
+		Shape s = new Shape();
+		s.rings.add(ring(24, 71, 32.26002860472374, 71.40961379632705, 32.26002860472374, 81.40961379632705, 24, 81));
+		s.confidence = 0.56;
+		c.solution.add(s);
+		ret.add(c);
+		// seed 1: the area of an unclosed ring leaves out the closing edge but the mask closes
+		// it, so the union of the ring with itself came out non-positive and the bound was wrong
+		c = new Case();
+		s = new Shape();
+		s.rings.add(openRing(25, 74, 5, 74, 5, 51, 25, 51));
+		c.truth.add(s);
+		s = new Shape();
+		s.rings.add(openRing(25, 74, 5, 74, 5, 51, 25, 51));
+		s.confidence = 0.5;
+		c.solution.add(s);
+		ret.add(c);
+		return ret;
+	}
+
+	private Scorer.Options fastOptions() {
+		Scorer.Options o = new Scorer.Options();
+		o.fastIou = true;
+		o.iouMargin = iouMargin;
+		return o;
+	}
+
+	private String engineNames() {
+		StringBuilder sb = new StringBuilder();
+		for (Engine e: engines) sb.append(sb.length() > 0 ? ", " : "").append(e.name());
+		return sb.toString();
+	}
+
+	/**
+	 * Compares an engine with the reference on an image. Returns null if they agree, otherwise
+	 * a description of the first difference, starting with its kind: pair, image or error.
+	 */
+	private String check(Case c, Engine e) {
+		Polygon[] truth, solution, engineTruth, engineSolution;
+		try {
+			truth = parse(c.truth, true);
+			solution = parse(c.solution, false);
+			engineTruth = parse(c.truth, true);
+			engineSolution = parse(c.solution, false);
+		}
+		catch (Exception ex) {
+			return null; // not a valid image, the reference can't score it either
+		}
+		for (int sI = 0; sI < solution.length; sI++) {
+			for (int tI = 0; tI < truth.length; tI++) {
+				Polygon s = solution[sI], t = truth[tI];
+				if (s.minx > t.maxx || s.maxx < t.minx || s.miny > t.maxy || s.maxy < t.miny) continue;
+				pairCnt++;
+				double ref = Scorer.iou(s, t);
+				double alt;
+				try {
+					alt = e.iou(engineSolution[sI], engineTruth[tI]);
+				}
+				catch (Exception ex) {
+					return "error: IOU of solution " + sI + " and truth " + tI + " failed: " + ex;
+				}
+				// an estimate may be off, but not by more than its error bound
+				double tolerance = e.tolerance(engineSolution[sI], engineTruth[tI]);
+				if (Math.abs(alt - ref) > tolerance + 1e-9) {
+					return "pair: IOU of solution " + sI + " and truth " + tI + " is " + alt + " instead of " + ref
+							+ " (tolerance " + tolerance + ")";
+				}
+			}
+		}
+		Metrics ref = new Scorer(new Scorer.Options()).score(truth, solution, false);
+		Metrics alt;
+		try {
+			alt = e.score(engineTruth, engineSolution);
+		}
+		catch (Exception ex) {
+			return "error: scoring failed: " + ex;
+		}
+		if (ref.tp != alt.tp || ref.fp != alt.fp || ref.fn != alt.fn) {
+			return "image: TP/FP/FN is " + alt.tp + "/" + alt.fp + "/" + alt.fn + " instead of " + ref.tp + "/" + ref.fp + "/" + ref.fn;
+		}
+		for (int sI = 0; sI < solution.length; sI++) {
+			int refPartner = indexOf(truth, solution[sI].partner);
+			int altPartner = indexOf(engineTruth, engineSolution[sI].partner);
+			if (refPartner != altPartner) {
+				return "image: solution " + sI + " matches truth " + altPartner + " instead of " + refPartner;
+			}
+		}
+		return null;
+	}
+
+	private static String kind(String diff) {
+		return diff.substring(0, diff.indexOf(':'));
+	}
+
+	private static int indexOf(Polygon[] ps, Polygon p) {
+		for (int i = 0; i < ps.length; i++) if (ps[i] == p) return i;
+		return -1;
+	}
+
+	// Goes through the CSV parser like the files do, so empty, tiny and unclosed polygons are handled the same way
+	private static Polygon[] parse(List<Shape> shapes, boolean truth) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (String line: csvLines(shapes, truth)) sb.append(line).append('\n');
+		Map<String, Polygon[]> m = Scorer.readPolygons(new LineNumberReader(new StringReader(sb.toString())), truth, null, null);
+		Polygon[] ret = m.get(IMAGE_ID);
+		return ret == null ? new Polygon[0] : ret;
+	}
+
+	private static List<String> csvLines(List<Shape> shapes, boolean truth) {
+		List<String> ret = new Vector<>();
+		for (int i = 0; i < shapes.size(); i++) {
+			Shape s = shapes.get(i);
+			ret.add(IMAGE_ID + "," + (i + 1) + "," + s.wkt() + "," + (truth ? "\"POLYGON ((0 0 0))\"" : num(s.confidence)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes polygons, holes and vertices, closes rings and rounds coordinates, as long as
+	 * the image still shows a difference of the same kind.
+	 */
+	private Case shrink(Case c, Engine e, String kind) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Case candidate: smaller(c)) {
+				String diff = check(candidate, e);
+				if (diff != null && kind(diff).equals(kind)) {
+					c = candidate;
+					changed = true;
+					break;
+				}
+			}
+		}
+		return c;
+	}
+
+	// Variants of an image with one thing removed or made regular, the biggest changes first
+	private static List<Case> smaller(Case c) {
+		List<Case> ret = new Vector<>();
+		for (int set = 0; set < 2; set++) {
+			int n = (set == 0 ? c.solution : c.truth).size();
+			for (int i = 0; i < n; i++) {
+				Case x = c.copy();
+				(set == 0 ? x.solution : x.truth).remove(i);
+				ret.add(x);
+			}
+		}
+		for (int set = 0; set < 2; set++) {
+			List<Shape> shapes = set == 0 ? c.solution : c.truth;
+			for (int i = 0; i < shapes.size(); i++) {
+				for (int rI = 1; rI < shapes.get(i).rings.size(); rI++) {
+					Case x = c.copy();
+					(set == 0 ? x.solution : x.truth).get(i).rings.remove(rI);
+					ret.add(x);
+				}
+				for (int rI = 0; rI < shapes.get(i).rings.size(); rI++) {
+					List<double[]> r = shapes.get(i).rings.get(rI);
+					// a closed ring stays closed, otherwise closing and removing a point would undo each other
+					boolean closed = Arrays.equals(r.get(0), r.get(r.size() - 1));
+					for (int k = closed ? 1 : 0; k < (closed ? r.size() - 1 : r.size()) && r.size() > 3; k++) {
+						Case x = c.copy();
+						(set == 0 ? x.solution : x.truth).get(i).rings.get(rI).remove(k);
+						ret.add(x);
+					}
+					if (!closed) {
+						Case x = c.copy();
+						List<double[]> xr = (set == 0 ? x.solution : x.truth).get(i).rings.get(rI);
+						xr.add(xr.get(0).clone());
+						ret.add(x);
+					}
+					for (int k = 0; k < (closed ? r.size() - 1 : r.size()); k++) {
+						double[] p = r.get(k);
+						if (p[0] == Math.rint(p[0]) && p[1] == Math.rint(p[1])) continue;
+						Case x = c.copy();
+						List<double[]> xr = (set == 0 ? x.solution : x.truth).get(i).rings.get(rI);
+						for (double[] q: k == 0 && closed ? new double[][] {xr.get(0), xr.get(xr.size() - 1)} : new double[][] {xr.get(k)}) {
+							q[0] = Math.rint(q[0]);
+							q[1] = Math.rint(q[1]);
+						}
+						ret.add(x);
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void report(Case c) throws Exception {
+		List<String> truth = csvLines(c.truth, true);
+		List<String> solution = csvLines(c.solution, false);
+		System.out.println("Truth:");
+		for (String line: truth) System.out.println(line);
+		System.out.println("Solution:");
+		for (String line: solution) System.out.println(line);
+		if (outDir == null) return;
+		write(new File(outDir, "truth.csv"), "ImageId,BuildingId,PolygonWKT_Pix,PolygonWKT_Geo", truth);
+		write(new File(outDir, "solution.csv"), "ImageId,BuildingId,PolygonWKT_Pix,Confidence", solution);
+		System.out.println("Written to " + outDir.getPath());
+	}
+
+	private static void write(File f, String header, List<String> lines) throws Exception {
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+		pw.println(header);
+		for (String line: lines) pw.println(line);
+		pw.close();
+	}
+
+	// An image of a few truth polygons and solution polygons derived from them
+	private Case generate() {
+		Case c = new Case();
+		int truthCnt = 1 + rnd.nextInt(4);
+		for (int i = 0; i < truthCnt; i++) c.truth.add(randomShape());
+		int solutionCnt = rnd.nextInt(2 * truthCnt + 2);
+		for (int i = 0; i < solutionCnt; i++) {
+			Shape s = rnd.nextInt(5) == 0 ? randomShape() : derive(c.truth.get(rnd.nextInt(truthCnt)));
+			// ties in confidence are common, they must be broken the same way
+			s.confidence = rnd.nextInt(4) == 0 ? 0.5 : rnd.nextInt(100) / 100.0;
+			c.solution.add(s);
+		}
+		return c;
+	}
+
+	private Shape randomShape() {
+		double x = coord(80), y = coord(80);
+		Shape s;
+		switch (rnd.nextInt(6)) {
+		case 0: // rectangle, the simplest case for exact ties
+			s = rect(x, y, 1 + coord(30), 1 + coord(30));
+			break;
+		case 1: // with a hole, sometimes touching the outer ring
+			s = rect(x, y, 10 + coord(20), 10 + coord(20));
+			double[] b = bounds(s.rings.get(0));
+			double hx = rnd.nextBoolean() ? b[0] : b[0] + 1 + coord(4);
+			s.rings.add(rect(hx, b[1] + 2, (b[2] - hx) / 2, (b[3] - b[1]) / 2).rings.get(0));
+			break;
+		case 2: // sliver with an area around MIN_AREA
+			double w = rnd.nextInt(4) == 0 ? 0.5 : 1 + rnd.nextInt(3);
+			double a = Scorer.MIN_AREA + (rnd.nextInt(3) - 1) * (rnd.nextBoolean() ? 0.5 : 1e-9);
+			s = rnd.nextBoolean() ? rect(x, y, w, a / w) : rect(x, y, a / w, w);
+			break;
+		case 3: // L shape, concave
+			double lw = 6 + coord(20), lh = 6 + coord(20);
+			s = new Shape();
+			s.rings.add(ring(x, y, x + lw, y, x + lw, y + lh / 2, x + lw / 2, y + lh / 2, x + lw / 2, y + lh, x, y + lh));
+			break;
+		case 4: // triangle
+			s = new Shape();
+			s.rings.add(ring(x, y, x + coord(30), y + coord(10), x + coord(10), y + coord(30)));
+			break;
+		default: // bow tie, the ring crosses itself
+			double bw = 4 + coord(20), bh = 4 + coord(20);
+			s = new Shape();
+			s.rings.add(ring(x, y, x + bw, y + bh, x + bw, y, x, y + bh));
+			break;
+		}
+		for (List<double[]> r: s.rings) mutateRing(r);
+		return s;
+	}
+
+	// A solution polygon close to a truth polygon
+	private Shape derive(Shape t) {
+		Shape s = t.copy();
+		double[] b = bounds(s.rings.get(0));
+		double w = b[2] - b[0], h = b[3] - b[1];
+		double dx = 0, dy = 0;
+		switch (rnd.nextInt(7)) {
+		case 0: // identical
+			break;
+		case 1: // a third of the width off: a rectangle's IOU is exactly 0.5
+			dx = w / 3;
+			break;
+		case 2: // touching edge
+			dx = rnd.nextBoolean() ? w : -w;
+			break;
+		case 3: // shared corner
+			dx = w;
+			dy = h;
+			break;
+		case 4: // small shift
+			dx = coord(3) - 1.5;
+			dy = coord(3) - 1.5;
+			break;
+		case 5: // scaled around the first corner, the IOU is the area ratio
+			double f = rnd.nextBoolean() ? Math.sqrt(0.5) : Math.sqrt(2);
+			for (List<double[]> r: s.rings) {
+				for (double[] p: r) {
+					p[0] = b[0] + (p[0] - b[0]) * f;
+					p[1] = b[1] + (p[1] - b[1]) * f;
+				}
+			}
+			break;
+		default: // vertices moved by up to half a pixel
+			for (List<double[]> r: s.rings) {
+				for (double[] p: r) {
+					p[0] += rnd.nextInt(3) * 0.25 - 0.25;
+					p[1] += rnd.nextInt(3) * 0.25 - 0.25;
+				}
+			}
+			break;
+		}
+		for (List<double[]> r: s.rings) {
+			for (double[] p: r) {
+				p[0] += dx;
+				p[1] += dy;
+			}
+		}
+		if (s.rings.size() > 1 && rnd.nextInt(3) == 0) s.rings.remove(1);
+		return s;
+	}
+
+	// Same area with other vertex lists: direction, start, collinear and duplicate points, unclosed
+	private void mutateRing(List<double[]> r) {
+		r.remove(r.size() - 1); // open while changed
+		if (rnd.nextBoolean()) Collections.reverse(r);
+		if (rnd.nextBoolean()) Collections.rotate(r, rnd.nextInt(r.size()));
+		if (rnd.nextInt(3) == 0) {
+			int i = rnd.nextInt(r.size());
+			double[] p = r.get(i), q = r.get((i + 1) % r.size());
+			r.add(i + 1, new double[] {(p[0] + q[0]) / 2, (p[1] + q[1]) / 2});
+		}
+		if (rnd.nextInt(4) == 0) {
+			int i = rnd.nextInt(r.size());
+			r.add(i, r.get(i).clone());
+		}
+		if (closedOnly || rnd.nextInt(5) != 0) r.add(r.get(0).clone()); // closed
+	}
+
+	private static Shape rect(double x, double y, double w, double h) {
+		Shape s = new Shape();
+		s.rings.add(ring(x, y, x + w, y, x + w, y + h, x, y + h));
+		return s;
+	}
+
+	// A closed ring of the given x, y pairs
+	private static List<double[]> ring(double... xy) {
+		List<double[]> ret = openRing(xy);
+		ret.add(ret.get(0).clone());
+		return ret;
+	}
+
+	// Same without the closing point
+	private static List<double[]> openRing(double... xy) {
+		List<double[]> ret = new Vector<>();
+		for (int i = 0; i < xy.length; i += 2) ret.add(new double[] {xy[i], xy[i + 1]});
+		return ret;
+	}
+
+	private static double[] bounds(List<double[]> r) {
+		double[] ret = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for (double[] p: r) {
+			ret[0] = Math.min(ret[0], p[0]);
+			ret[1] = Math.min(ret[1], p[1]);
+			ret[2] = Math.max(ret[2], p[0]);
+			ret[3] = Math.max(ret[3], p[1]);
+		}
+		return ret;
+	}
+
+	// Mostly whole pixels, where edges fall on pixel boundaries, sometimes halves or arbitrary
+	private double coord(int max) {
+		int k = rnd.nextInt(4);
+		if (k == 0) return rnd.nextDouble() * max;
+		if (k == 1) return rnd.nextInt(2 * max) / 2.0;
+		return rnd.nextInt(max);
+	}
+
+	// Shortest form that parses back to the same value
+	private static String num(double d) {
+		return d == Math.rint(d) && Math.abs(d) < 1e15 ? String.valueOf((long) d) : String.valueOf(d);
+	}
+
+	public static void main(String[] args) throws Exception {
+		DiffHarness h = new DiffHarness();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-seed")) h.seed = Long.parseLong(args[i+1]);
+			else if (args[i].equals("-seconds")) h.seconds = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-iou-margin")) h.iouMargin = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-out")) h.outDir = new File(args[i+1]);
+			else if (args[i].equals("-closed-only")) h.closedOnly = true;
+		}
+		if (h.seconds <= 0) exit("Invalid -seconds: " + h.seconds);
+		if (h.outDir != null && !h.outDir.isDirectory() && !h.outDir.mkdirs()) exit("Can't create output directory: " + h.outDir.getPath());
+		h.run();
+	}
+
+	private static void exit(String s) {
+		System.out.println(s);
+		System.exit(1);
+	}
+}
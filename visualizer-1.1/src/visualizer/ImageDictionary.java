@@ -0,0 +1,56 @@
+package visualizer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numbers image ids densely from 0 in the order they are first seen. The truth and the
+ * solution of a run share one dictionary, so an image has the same number in both and its
+ * data can be kept in arrays indexed by the number instead of maps keyed by the id. Each id
+ * string is kept once. Thread safe, numbers are never reused.
+ */
+public class ImageDictionary {
+	private final Map<String, Integer> idToIndex = new HashMap<>();
+	private String[] ids = new String[64];
+	private int size;
+
+	// The number of the id, a new one if the id is not known yet
+	public synchronized int add(String id) {
+		Integer index = idToIndex.get(id);
+		if (index != null) return index;
+		if (size == ids.length) ids = Arrays.copyOf(ids, 2 * size);
+		ids[size] = id;
+		idToIndex.put(id, size);
+		return size++;
+	}
+
+	// -1 if the id is not known
+	public synchronized int indexOf(String id) {
+		Integer index = idToIndex.get(id);
+		return index == null ? -1 : index;
+	}
+
+	public synchronized String id(int index) {
+		return ids[index];
+	}
+
+	public synchronized String[] ids(int[] indexes) {
+		String[] ret = new String[indexes.length];
+		for (int i = 0; i < indexes.length; i++) ret[i] = ids[indexes[i]];
+		return ret;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// An independent copy with the same numbers, ids added to one are not added to the other
+	public synchronized ImageDictionary copy() {
+		ImageDictionary ret = new ImageDictionary();
+		ret.idToIndex.putAll(idToIndex);
+		ret.ids = Arrays.copyOf(ids, ids.length);
+		ret.size = size;
+		return ret;
+	}
+}
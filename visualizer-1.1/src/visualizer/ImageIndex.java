@@ -0,0 +1,203 @@
+package visualizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+/**
+ * The images of a 3-band and an 8-band directory, listed once so that image directory mode
+ * doesn't list huge directories on every start and image switches don't have to check that
+ * the files exist. The index is kept in a manifest file, by default in the temporary directory
+ * so that the image directories are not written to.
+ * The manifest is valid as long as the modification times of both directories don't change,
+ * which happens when a file is added, removed or renamed in them.
+ *
+ * Manifest format:
+ *   dir,3,<mtime>,<path> and dir,8,<mtime>,<path> (no line for a missing 8-band directory)
+ *   img,<image id>,<3, 8 or 38: which files the image has>
+ *   end,<number of img lines>, a manifest without it was not written completely
+ */
+public class ImageIndex {
+	public static final String FILE_NAME = "image-index.csv";
+	private static final int HAS3 = 1, HAS8 = 2;
+
+	private Map<String, Integer> idToFiles = new HashMap<>();
+	private String[] ids; // with a 3-band image, sorted
+	private long mtime3, mtime8;
+
+	/**
+	 * The index of the directories from the manifest if it is up to date, otherwise the
+	 * directories are listed and the manifest is rewritten. dir8 may be null, manifest null
+	 * means the default location. A manifest that can't be written is not an error, the next
+	 * start lists the directories again.
+	 */
+	public static ImageIndex load(File dir3, File dir8, File manifest) {
+		if (manifest == null) manifest = defaultManifest(dir3, dir8);
+		ImageIndex ret = read(manifest, dir3, dir8);
+		if (ret != null) return ret;
+		// the manifest may be in one of the directories, so it is created before their mtimes
+		// are read, rewriting it later doesn't change them
+		try {
+			manifest.createNewFile();
+		}
+		catch (Exception e) {
+			// not writable, only scanned
+		}
+		ret = scan(dir3, dir8);
+		try {
+			ret.save(manifest, dir3, dir8);
+		}
+		catch (Exception e) {
+			// the index is still usable
+		}
+		return ret;
+	}
+
+	// One manifest per pair of directories, named by a hash of their paths. A collision only costs
+	// a scan, read() checks the paths.
+	private static File defaultManifest(File dir3, File dir8) {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "visualizer-image-index");
+		dir.mkdirs();
+		CRC32 crc = new CRC32();
+		String paths = dir3.getAbsolutePath() + File.pathSeparator + (dir8 == null ? "" : dir8.getAbsolutePath());
+		crc.update(paths.getBytes(StandardCharsets.UTF_8));
+		return new File(dir, FILE_NAME.replace(".csv", "-" + Long.toHexString(crc.getValue()) + ".csv"));
+	}
+
+	// Lists the directories without reading the whole listing into memory
+	public static ImageIndex scan(File dir3, File dir8) {
+		ImageIndex ret = new ImageIndex();
+		ret.mtime3 = dir3.lastModified();
+		ret.mtime8 = dir8 == null ? 0 : dir8.lastModified();
+		List<String> ids = new Vector<>();
+		for (String name: list(dir3)) {
+			if (!name.endsWith(".tif")) continue;
+			// the same as the image ids of earlier versions
+			String id = name.replace(".tif", "").replace("3band_", "");
+			if (ret.add(id, HAS3)) ids.add(id);
+		}
+		if (dir8 != null) {
+			for (String name: list(dir8)) {
+				if (!name.startsWith("8band_") || !name.endsWith(".tif")) continue;
+				ret.add(name.substring("8band_".length(), name.length() - ".tif".length()), HAS8);
+			}
+		}
+		ret.ids = ids.toArray(new String[0]);
+		Arrays.sort(ret.ids);
+		return ret;
+	}
+
+	// Returns true if the id is new
+	private boolean add(String id, int files) {
+		Integer old = idToFiles.get(id);
+		idToFiles.put(id, old == null ? files : old | files);
+		return old == null;
+	}
+
+	private static List<String> list(File dir) {
+		List<String> ret = new Vector<>();
+		if (!dir.isDirectory()) return ret;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+			for (Path p: stream) ret.add(p.getFileName().toString());
+		}
+		catch (Exception e) {
+			System.out.println("Error listing " + dir.getAbsolutePath());
+			e.printStackTrace();
+		}
+		return ret;
+	}
+
+	// Image ids that have a 3-band image, sorted
+	public String[] ids() {
+		return ids.clone();
+	}
+
+	public boolean has3band(String id) {
+		Integer files = idToFiles.get(id);
+		return files != null && (files & HAS3) != 0;
+	}
+
+	public boolean has8band(String id) {
+		Integer files = idToFiles.get(id);
+		return files != null && (files & HAS8) != 0;
+	}
+
+	private void save(File f, File dir3, File dir8) throws Exception {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+		try {
+			out.println("# Image index, written by visualizer.ImageIndex. Valid while the mtimes of the directories match.");
+			out.println("dir,3," + mtime3 + "," + dir3.getAbsolutePath());
+			if (dir8 != null) out.println("dir,8," + mtime8 + "," + dir8.getAbsolutePath());
+			String[] sorted = idToFiles.keySet().toArray(new String[0]);
+			Arrays.sort(sorted);
+			for (String id: sorted) {
+				int files = idToFiles.get(id);
+				out.println("img," + id + "," + ((files & HAS3) != 0 ? "3" : "") + ((files & HAS8) != 0 ? "8" : ""));
+			}
+			out.println("end," + sorted.length);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a manifest, returns null if it doesn't exist, is incomplete or is not the manifest
+	 * of the directories as they are now.
+	 */
+	private static ImageIndex read(File f, File dir3, File dir8) {
+		if (!f.exists() || f.length() == 0) return null;
+		ImageIndex ret = new ImageIndex();
+		boolean dir3Ok = false, dir8Ok = dir8 == null, end = false;
+		List<String> ids = new Vector<>();
+		try {
+			for (String line: Utils.readTextLines(f.getPath())) {
+				if (end) return null;
+				if (line.startsWith("img,")) {
+					int pos = line.lastIndexOf(',');
+					String id = line.substring(4, pos);
+					String files = line.substring(pos + 1);
+					ret.idToFiles.put(id, (files.contains("3") ? HAS3 : 0) | (files.contains("8") ? HAS8 : 0));
+					if (files.contains("3")) ids.add(id);
+				}
+				else if (line.startsWith("dir,")) {
+					String[] parts = line.split(",", 4);
+					File dir = parts[1].equals("3") ? dir3 : dir8;
+					if (dir == null) return null;
+					long mtime = Long.parseLong(parts[2]);
+					if (!new File(parts[3]).equals(dir.getAbsoluteFile()) || mtime != dir.lastModified()) return null;
+					if (dir == dir3) {
+						dir3Ok = true;
+						ret.mtime3 = mtime;
+					}
+					else {
+						dir8Ok = true;
+						ret.mtime8 = mtime;
+					}
+				}
+				else if (line.startsWith("end,")) {
+					if (Integer.parseInt(line.substring(4)) != ret.idToFiles.size()) return null;
+					end = true;
+				}
+			}
+		}
+		catch (Exception e) {
+			return null;
+		}
+		if (!dir3Ok || !dir8Ok || !end) return null;
+		ret.ids = ids.toArray(new String[0]);
+		Arrays.sort(ret.ids);
+		return ret;
+	}
+}
@@ -0,0 +1,88 @@
+package visualizer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exact IOUs of truth and solution polygon pairs. A solution polygon is identified by its
+ * rings, not by the object, so when two solutions of the same truth contain the same building,
+ * e.g. two versions of a model, its IOUs are calculated once and then reused. Thread safe.
+ */
+public class IouCache {
+	private final Map<Key, Double> pairs = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+
+	// null if not known yet
+	public Double get(Polygon tP, Polygon sP) {
+		Double ret = pairs.get(new Key(tP, sP));
+		if (ret != null) hits.incrementAndGet();
+		return ret;
+	}
+
+	public void put(Polygon tP, Polygon sP, double iou) {
+		pairs.put(new Key(tP, sP), iou);
+	}
+
+	// The cached IOU, calculated and cached first if needed. 0 if the bounds don't overlap.
+	public double iou(Polygon tP, Polygon sP) {
+		if (sP.minx > tP.maxx || sP.maxx < tP.minx) return 0;
+		if (sP.miny > tP.maxy || sP.maxy < tP.miny) return 0;
+		Double ret = get(tP, sP);
+		if (ret != null) return ret;
+		double iou = Scorer.iou(sP, tP);
+		put(tP, sP, iou);
+		return iou;
+	}
+
+	public int size() {
+		return pairs.size();
+	}
+
+	// Number of lookups that found a cached IOU
+	public long hits() {
+		return hits.get();
+	}
+
+	private static class Key {
+		private final Polygon truth;
+		private final Polygon solution;
+		private final int hash;
+
+		public Key(Polygon truth, Polygon solution) {
+			this.truth = truth;
+			this.solution = solution;
+			int h = System.identityHashCode(truth);
+			for (Ring r: solution.rings) {
+				for (P2 p: r.points) {
+					long bits = Double.doubleToLongBits(p.x) * 31 + Double.doubleToLongBits(p.y);
+					h = 31 * h + (int) (bits ^ (bits >>> 32));
+				}
+			}
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if (k.truth != truth || k.hash != hash) return false;
+			if (k.solution == solution) return true;
+			if (k.solution.rings.size() != solution.rings.size()) return false;
+			for (int i = 0; i < solution.rings.size(); i++) {
+				P2[] a = solution.rings.get(i).points;
+				P2[] b = k.solution.rings.get(i).points;
+				if (a.length != b.length) return false;
+				for (int j = 0; j < a.length; j++) {
+					if (a[j].x != b[j].x || a[j].y != b[j].y) return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,5 @@
+package visualizer;
+
+public enum Match {
+	NOTHING, TP, FP, FN
+}
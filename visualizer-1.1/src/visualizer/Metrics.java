@@ -0,0 +1,33 @@
+package visualizer;
+
+/**
+ * Match counts of one image or of a set of images.
+ */
+public class Metrics {
+	public int tp;
+	public int fp;
+	public int fn;
+	
+	public void add(Metrics m) {
+		tp += m.tp;
+		fp += m.fp;
+		fn += m.fn;
+	}
+	
+	public double precision() {
+		return tp + fp > 0 ? (double)tp / (tp + fp) : 0;
+	}
+	public double recall() {
+		return tp + fn > 0 ? (double)tp / (tp + fn) : 0;
+	}
+	public double fScore() {
+		double p = precision();
+		double r = recall();
+		return p + r > 0 ? 2 * p * r / (p + r) : 0;
+	}
+	
+	@Override
+	public String toString() {
+		return "TP:" + tp + " FP:" + fp + " FN:" + fn;
+	}
+}
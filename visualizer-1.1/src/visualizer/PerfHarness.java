@@ -0,0 +1,233 @@
+package visualizer;
+
+import static visualizer.Utils.f;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.LineNumberReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Performance regression check on a data set created by DataGenerator. Times scoring, tile
+ * loading and band extraction and compares the fastest times with a stored baseline, and the
+ * scores with the golden scores stored with it. Exits with status 1 if a task got slower than
+ * the tolerance allows or a score changed. The fastest of several runs is the one least
+ * disturbed by other processes, GC and JIT, so it varies much less between checks than the
+ * median. Baselines are machine specific, create them with
+ * -update on the machine that runs the check.
+ */
+public class PerfHarness {
+	private File dataDir;
+	private File baselineFile;
+	private int repeat = 10;
+	private double tolerance = 0.25; // allowed slowdown, 0.25 = 25%
+	private double minSlowdown = 5; // ms, smaller slowdowns are noise even if above the tolerance
+	private boolean update = false;
+
+	private Map<String, Double> times = new LinkedHashMap<>(); // fastest times in ms
+	private Map<String, String> scores = new LinkedHashMap<>(); // TP,FP,FN
+
+	// A timed task, returns its score as TP,FP,FN or null if it doesn't score
+	private interface Task {
+		public String run() throws Exception;
+	}
+
+	private void runAll() throws Exception {
+		final File truth = new File(dataDir, "truth.csv");
+		final File solution = new File(dataDir, "solution.csv");
+		final File dir3 = new File(dataDir, "3band");
+		final File dir8 = new File(dataDir, "8band");
+		if (!truth.exists() || !solution.exists()) exit("No truth.csv and solution.csv in " + dataDir.getPath());
+
+		// the same as the -no-gui mode: parse both files and score
+		for (final boolean fast: new boolean[] {false, true}) {
+			run(fast ? "score-fast" : "score-exact", new Task() {
+				@Override
+				public String run() throws Exception {
+					Scorer.Options o = new Scorer.Options();
+					o.fastIou = fast;
+					FileReader t = new FileReader(truth);
+					FileReader s = new FileReader(solution);
+					try {
+						return score(Scorer.score(t, s, o));
+					}
+					finally {
+						t.close();
+						s.close();
+					}
+				}
+			});
+		}
+		// in-process scoring with the truth and solution already in memory
+		final Scorer scorer = new Scorer(new Scorer.Options(), read(truth, true));
+		final Map<String, Polygon[]> solutionPolygons = read(solution, false);
+		run("score-cached", new Task() {
+			@Override
+			public String run() throws Exception {
+				return score(scorer.score(solutionPolygons));
+			}
+		});
+
+		for (final File dir: new File[] {dir3, dir8}) {
+			if (!dir.isDirectory()) continue;
+			run("tile-load-" + dir.getName(), new Task() {
+				@Override
+				public String run() throws Exception {
+					for (File f: tifFiles(dir)) TiffReader.readBands(f);
+					return null;
+				}
+			});
+		}
+		if (dir8.isDirectory()) {
+			final File out = new File(System.getProperty("java.io.tmpdir"), "perf-harness-bands");
+			out.mkdirs();
+			run("band-extract", new Task() {
+				@Override
+				public String run() throws Exception {
+					PrintStream stdout = System.out;
+					System.setOut(new PrintStream(new OutputStream() {
+						@Override
+						public void write(int b) {} // BandExtractor prints every band of every file
+					}));
+					try {
+						BandExtractor.main(new String[] {"-in", dir8.getPath(), "-out", out.getPath()});
+					}
+					finally {
+						System.setOut(stdout);
+					}
+					return null;
+				}
+			});
+			for (File f: out.listFiles()) f.delete();
+			out.delete();
+		}
+	}
+
+	// Runs a task once to warm up and then repeat times, keeps the fastest time
+	private void run(String name, Task task) throws Exception {
+		System.out.print(name + " ...");
+		String score = task.run();
+		double min = Double.MAX_VALUE;
+		for (int i = 0; i < repeat; i++) {
+			long start = System.nanoTime();
+			String s = task.run();
+			min = Math.min(min, (System.nanoTime() - start) / 1e6);
+			if (s != null && !s.equals(score)) exit("\nScore of " + name + " differs between runs: " + score + " and " + s);
+		}
+		times.put(name, min);
+		if (score != null) scores.put(name, score);
+		System.out.println(" " + f(min) + " ms");
+	}
+
+	private static String score(Scorer.Result r) {
+		return r.total.tp + "," + r.total.fp + "," + r.total.fn;
+	}
+
+	private static Map<String, Polygon[]> read(File f, boolean truth) throws Exception {
+		return Scorer.readPolygons(f, truth, null, null);
+	}
+
+	private static List<File> tifFiles(File dir) {
+		List<File> ret = new Vector<>();
+		for (File f: dir.listFiles()) {
+			if (f.getName().endsWith(".tif")) ret.add(f);
+		}
+		return ret;
+	}
+
+	/**
+	 * Baseline file lines are task,time,<ms> and task,score,<tp>,<fp>,<fn>.
+	 * Returns false if there was a regression.
+	 */
+	private boolean compare() throws Exception {
+		Map<String, Double> baseTimes = new LinkedHashMap<>();
+		Map<String, String> baseScores = new LinkedHashMap<>();
+		LineNumberReader lnr = new LineNumberReader(new FileReader(baselineFile));
+		try {
+			while (true) {
+				String line = lnr.readLine();
+				if (line == null) break;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] parts = line.split(",", 3);
+				if (parts[1].equals("time")) baseTimes.put(parts[0], Double.parseDouble(parts[2]));
+				else if (parts[1].equals("score")) baseScores.put(parts[0], parts[2]);
+			}
+		}
+		finally {
+			lnr.close();
+		}
+
+		boolean ok = true;
+		String format = "%-16s %10s %10s %8s  %s";
+		System.out.println();
+		System.out.println(String.format(format, "Task", "Time ms", "Baseline", "Change", "Status"));
+		for (String name: times.keySet()) {
+			double t = times.get(name);
+			Double base = baseTimes.get(name);
+			String change = "-";
+			String status = "no baseline";
+			if (base != null) {
+				double ratio = t / Math.max(0.001, base);
+				change = (ratio >= 1 ? "+" : "") + f(100 * (ratio - 1)) + "%";
+				boolean slower = ratio > 1 + tolerance && t - base > minSlowdown;
+				status = slower ? "SLOWER" : "ok";
+				if (slower) ok = false;
+			}
+			String golden = baseScores.get(name);
+			String score = scores.get(name);
+			if (score != null && golden != null && !score.equals(golden)) {
+				status += ", SCORE " + score + " instead of " + golden;
+				ok = false;
+			}
+			System.out.println(String.format(format, name, f(t), base == null ? "-" : f(base), change, status));
+		}
+		return ok;
+	}
+
+	private void writeBaseline() throws Exception {
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(baselineFile), "UTF-8"));
+		pw.println("# PerfHarness baseline of " + dataDir.getPath() + ": fastest times in ms and golden scores (TP,FP,FN)");
+		for (String name: times.keySet()) {
+			pw.println(name + ",time," + f(times.get(name)));
+			if (scores.containsKey(name)) pw.println(name + ",score," + scores.get(name));
+		}
+		pw.close();
+		System.out.println("Baseline written to " + baselineFile.getPath());
+	}
+
+	public static void main(String[] args) throws Exception {
+		PerfHarness h = new PerfHarness();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-data")) h.dataDir = new File(args[i+1]);
+			else if (args[i].equals("-baseline")) h.baselineFile = new File(args[i+1]);
+			else if (args[i].equals("-repeat")) h.repeat = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-tolerance")) h.tolerance = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-min-slowdown")) h.minSlowdown = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-update")) h.update = true;
+		}
+		if (h.dataDir == null) exit("Data directory not set.");
+		if (h.baselineFile == null) h.baselineFile = new File(h.dataDir, "perf-baseline.csv");
+		if (h.repeat < 1) exit("Invalid -repeat: " + h.repeat);
+		h.runAll();
+		if (h.update || !h.baselineFile.exists()) {
+			h.writeBaseline();
+			return;
+		}
+		if (!h.compare()) exit("\nPerformance regression.");
+		System.out.println("\nNo regression.");
+	}
+
+	private static void exit(String s) {
+		System.out.println(s);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,130 @@
+package visualizer;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pixel level overlap of the truth and the solution of an image or a set of images, as
+ * opposed to the building level TP/FP/FN counts. All truth polygons and all solution polygons
+ * of an image are rasterised (holes included, one bit per 3-band pixel, see PolygonMask) into
+ * two bitmaps, IOU is the number of pixels set in both over the number set in either.
+ */
+public class PixelIou {
+	public long intersection;
+	public long union;
+
+	public void add(PixelIou o) {
+		intersection += o.intersection;
+		union += o.union;
+	}
+
+	// 1 if there are no building pixels at all, nothing was missed
+	public double iou() {
+		return union > 0 ? (double) intersection / union : 1;
+	}
+
+	@Override
+	public String toString() {
+		return "I:" + intersection + " U:" + union;
+	}
+
+	/**
+	 * Pixel overlap of one image. Returns null if either array is missing, like the building
+	 * level score.
+	 */
+	public static PixelIou of(Polygon[] truthPolygons, Polygon[] solutionPolygons) {
+		if (truthPolygons == null || solutionPolygons == null) return null;
+		PixelIou ret = new PixelIou();
+		if (truthPolygons.length == 0 && solutionPolygons.length == 0) return ret;
+		// both bitmaps cover the masks of all polygons
+		int row0 = Integer.MAX_VALUE, row1 = Integer.MIN_VALUE;
+		int word0 = Integer.MAX_VALUE, word1 = Integer.MIN_VALUE;
+		for (Polygon[] ps: new Polygon[][] {truthPolygons, solutionPolygons}) {
+			for (Polygon p: ps) {
+				PolygonMask m = p.getMask();
+				row0 = Math.min(row0, m.firstRow());
+				row1 = Math.max(row1, m.endRow());
+				word0 = Math.min(word0, m.firstWord());
+				word1 = Math.max(word1, m.endWord());
+			}
+		}
+		int words = word1 - word0;
+		int len = Math.max(0, row1 - row0) * words;
+		long[] t = new long[len];
+		long[] s = new long[len];
+		for (Polygon p: truthPolygons) p.getMask().orInto(t, row0, word0, words);
+		for (Polygon p: solutionPolygons) p.getMask().orInto(s, row0, word0, words);
+		long inter = 0, union = 0;
+		for (int i = 0; i < len; i++) {
+			inter += Long.bitCount(t[i] & s[i]);
+			union += Long.bitCount(t[i] | s[i]);
+		}
+		ret.intersection = inter;
+		ret.union = union;
+		return ret;
+	}
+
+	/**
+	 * Starts calculating the pixel overlap of the given images on the executor. The futures are
+	 * in the order of the ids, their result is null for images that can't be scored.
+	 */
+	public static Map<String, Future<PixelIou>> submit(ExecutorService executor, final Map<String, Polygon[]> truth,
+			final Map<String, Polygon[]> solution, Collection<String> ids) {
+		Map<String, Future<PixelIou>> ret = new LinkedHashMap<>();
+		for (final String id: ids) {
+			ret.put(id, executor.submit(new Callable<PixelIou>() {
+				@Override
+				public PixelIou call() {
+					return of(truth.get(id), solution.get(id));
+				}
+			}));
+		}
+		return ret;
+	}
+
+	// Same for the polygons of one image
+	public static Future<PixelIou> submit(ExecutorService executor, final Polygon[] truthPolygons,
+			final Polygon[] solutionPolygons) {
+		return executor.submit(new Callable<PixelIou>() {
+			@Override
+			public PixelIou call() {
+				return of(truthPolygons, solutionPolygons);
+			}
+		});
+	}
+
+	/**
+	 * Pixel overlap of the given images, calculated in parallel. The result is in the order of
+	 * the ids, with null for images that can't be scored.
+	 */
+	public static Map<String, PixelIou> of(Map<String, Polygon[]> truth, Map<String, Polygon[]> solution,
+			Collection<String> ids) {
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			Map<String, Future<PixelIou>> futures = submit(pool, truth, solution, ids);
+			Map<String, PixelIou> ret = new LinkedHashMap<>();
+			for (String id: futures.keySet()) ret.put(id, futures.get(id).get());
+			return ret;
+		}
+		catch (Exception e) {
+			throw new RuntimeException("Pixel IOU calculation failed", e);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	// Sum of the images that could be scored
+	public static PixelIou total(Collection<PixelIou> results) {
+		PixelIou ret = new PixelIou();
+		for (PixelIou r: results) {
+			if (r != null) ret.add(r);
+		}
+		return ret;
+	}
+}
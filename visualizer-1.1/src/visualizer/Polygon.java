@@ -0,0 +1,217 @@
+package visualizer;
+
+import static visualizer.Utils.f;
+
+import java.awt.geom.Area;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * A building footprint. The first ring is the outer boundary, the others are holes. Scoring 
+ * sets the match state, IOU score and partner of solution polygons, and of truth polygons 
+ * only if asked to, see Scorer.score(Polygon[], Polygon[], boolean).
+ */
+public class Polygon implements Comparable<Polygon> {
+	public static final int LOD_LEVELS = 12;
+	
+	public double confidence;
+	public Match match = Match.NOTHING;
+	public double minx, miny, maxx, maxy;
+	public double iouScore;
+	public double area = 0;
+	public Polygon partner; // the matching polygon of the other set if this is a TP
+	private volatile Area shape;
+	private volatile PolygonMask mask;
+	private Path2D[] lodPaths; // simplified outlines by level of detail, see getLodPath()
+	public List<Ring> rings = new Vector<>();
+	
+	public Polygon(String pString) {
+		this(pString, null);
+	}
+	
+	// Parses the ring list of a WKT polygon, the warning listener may be null
+	public Polygon(String pString, Scorer.WarningListener warnings) {
+		// ((124 364 0,...,124 364 0),(124 364 0,...,124 364 0))
+		pString = pString.replace("),(", "x"); // ring separator
+		pString = pString.replace(")", ""); // remove ) and (
+		pString = pString.replace("(", "");
+		String[] parts = pString.split("x");
+		for (String p: parts) {
+			Ring r = new Ring(p, warnings);
+			rings.add(r);
+		}
+		init();
+	}
+	
+	public Polygon(List<Ring> rings) {
+		this.rings = rings;
+		init();
+	}
+	
+	// Polygon with precomputed area and bounds, the shape is created when first needed
+	public Polygon(List<Ring> rings, double area, double minx, double miny, double maxx, double maxy) {
+		this.rings = rings;
+		this.area = area;
+		this.minx = minx;
+		this.miny = miny;
+		this.maxx = maxx;
+		this.maxy = maxy;
+	}
+	
+	private void init() {
+		makeBounds();
+		for (int rI = 0; rI < rings.size(); rI++) {
+			double a = Math.abs(rings.get(rI).area());
+			if (rI == 0) area += a; // first ring is positive
+			else area -= a;
+		}
+	}
+	
+	private void makeBounds() {
+		minx = Double.MAX_VALUE;
+		miny = Double.MAX_VALUE;
+		maxx = -Double.MAX_VALUE;
+		maxy = -Double.MAX_VALUE;
+		for (Ring r: rings) {
+			for (P2 p: r.points) {
+				minx = Math.min(p.x, minx);
+				maxx = Math.max(p.x, maxx);
+				miny = Math.min(p.y, miny);
+				maxy = Math.max(p.y, maxy);
+			}
+		}
+	}
+	
+	public Area getShape() {
+		Area shape = this.shape;
+		if (shape == null) {
+			shape = new Area();
+			for (int rI = 0; rI < rings.size(); rI++) {
+				Ring r = rings.get(rI);
+				Path2D path = new Path2D.Double();
+				path.setWindingRule(Path2D.WIND_EVEN_ODD);
+	
+				int n = r.points.length;
+				path.moveTo(r.points[0].x, r.points[0].y);
+				for(int i = 1; i < n; ++i) {
+				   path.lineTo(r.points[i].x, r.points[i].y);
+				}
+				path.closePath();
+				Area ringArea = new Area(path);
+				if (rI == 0) { // first ring is positive
+					shape.add(ringArea);
+				}
+				else {
+					shape.subtract(ringArea);
+				}
+			}
+			this.shape = shape;
+		}
+		return shape;
+	}
+
+	// Outline simplified with a tolerance of 2^level
+	public synchronized Path2D getLodPath(int level) {
+		if (lodPaths == null) lodPaths = new Path2D[LOD_LEVELS];
+		if (lodPaths[level] == null) {
+			double epsilon = Math.pow(2, level);
+			Path2D path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+			for (Ring r: rings) {
+				P2[] points = simplify(r.points, epsilon);
+				if (points.length < 3) continue; // collapsed, smaller than the tolerance
+				path.moveTo(points[0].x, points[0].y);
+				for (int i = 1; i < points.length; i++) path.lineTo(points[i].x, points[i].y);
+				path.closePath();
+			}
+			lodPaths[level] = path;
+		}
+		return lodPaths[level];
+	}
+	
+	public PolygonMask getMask() {
+		PolygonMask mask = this.mask;
+		if (mask == null) {
+			int n = rings.size();
+			double[][] xs = new double[n][];
+			double[][] ys = new double[n][];
+			for (int rI = 0; rI < n; rI++) {
+				P2[] points = rings.get(rI).points;
+				xs[rI] = new double[points.length];
+				ys[rI] = new double[points.length];
+				for (int i = 0; i < points.length; i++) {
+					xs[rI][i] = points[i].x;
+					ys[rI][i] = points[i].y;
+				}
+			}
+			mask = new PolygonMask(xs, ys);
+			this.mask = mask;
+		}
+		return mask;
+	}
+	
+	// Douglas-Peucker simplification of a closed ring
+	private static P2[] simplify(P2[] points, double epsilon) {
+		int n = points.length;
+		if (n < 4) return points;
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n-1] = true;
+		// split the ring at the point farthest from the first one so both halves are open chains
+		int far = 0;
+		double maxD = -1;
+		for (int i = 1; i < n - 1; i++) {
+			double dx = points[i].x - points[0].x;
+			double dy = points[i].y - points[0].y;
+			double d = dx * dx + dy * dy;
+			if (d > maxD) {
+				maxD = d;
+				far = i;
+			}
+		}
+		keep[far] = true;
+		Deque<int[]> stack = new ArrayDeque<>();
+		stack.push(new int[] {0, far});
+		stack.push(new int[] {far, n - 1});
+		while (!stack.isEmpty()) {
+			int[] seg = stack.pop();
+			int a = seg[0], b = seg[1];
+			if (b - a < 2) continue;
+			double max = -1;
+			int index = -1;
+			for (int i = a + 1; i < b; i++) {
+				double d = Line2D.ptSegDist(points[a].x, points[a].y, points[b].x, points[b].y, points[i].x, points[i].y);
+				if (d > max) {
+					max = d;
+					index = i;
+				}
+			}
+			if (max > epsilon) {
+				keep[index] = true;
+				stack.push(new int[] {a, index});
+				stack.push(new int[] {index, b});
+			}
+		}
+		List<P2> ret = new Vector<>();
+		for (int i = 0; i < n; i++) {
+			if (keep[i]) ret.add(points[i]);
+		}
+		return ret.toArray(new P2[0]);
+	}
+
+	@Override
+	public int compareTo(Polygon o) {
+		if (this.confidence > o.confidence) return -1;
+		if (this.confidence < o.confidence) return 1;
+		return 0;
+	}
+	
+	@Override
+	public String toString() {
+		return f(minx) + "," + f(miny) + " - " + 
+				f(maxx) + "," + f(maxy) + " " + match.toString();
+	}
+}
@@ -0,0 +1,157 @@
+package visualizer;
+
+import java.util.Arrays;
+
+/**
+ * Raster approximation of a polygon: one bit per pixel, a pixel is set if its centre is inside
+ * the polygon. Bits are aligned to absolute pixel columns (bit i of word w is column 64 * w + i)
+ * so two masks can be intersected word by word without shifting.
+ */
+public class PolygonMask {
+	private int row0;   // first row
+	private int rows;   // number of rows
+	private int word0;  // first word column
+	private int words;  // words per row
+	private long[] bits;
+	private int count;  // number of set bits
+	private int boundaryCount; // pixels crossed by an edge, only their bits can differ from the exact shape
+
+	/**
+	 * Rasterises a polygon given as rings of coordinates. The first ring is the outer boundary,
+	 * the others are holes. Each ring is filled using the even-odd rule like the polygon's Area.
+	 */
+	public PolygonMask(double[][] xs, double[][] ys) {
+		double minx = Double.MAX_VALUE, miny = Double.MAX_VALUE;
+		double maxx = -Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+		for (int i = 0; i < xs[0].length; i++) {
+			minx = Math.min(minx, xs[0][i]);
+			maxx = Math.max(maxx, xs[0][i]);
+			miny = Math.min(miny, ys[0][i]);
+			maxy = Math.max(maxy, ys[0][i]);
+		}
+		// rows and columns whose pixel centres may be inside
+		row0 = (int)Math.ceil(miny - 0.5);
+		rows = Math.max(0, (int)Math.floor(maxy - 0.5) - row0 + 1);
+		int col0 = (int)Math.ceil(minx - 0.5);
+		int col1 = (int)Math.floor(maxx - 0.5);
+		word0 = floorDiv(col0, 64);
+		words = Math.max(1, floorDiv(col1, 64) - word0 + 1);
+		bits = new long[rows * words];
+
+		double[] crossings = new double[16];
+		for (int rI = 0; rI < xs.length; rI++) {
+			boolean hole = rI > 0;
+			double[] rx = xs[rI];
+			double[] ry = ys[rI];
+			int n = rx.length;
+			for (int i = 0; i < n; i++) {
+				// a segment passes through one pixel more than the pixel borders it crosses
+				int j = i == 0 ? n - 1 : i - 1;
+				boundaryCount += Math.abs((int)Math.floor(rx[i]) - (int)Math.floor(rx[j]))
+						+ Math.abs((int)Math.floor(ry[i]) - (int)Math.floor(ry[j])) + 1;
+			}
+			for (int r = 0; r < rows; r++) {
+				double yc = row0 + r + 0.5;
+				int cnt = 0;
+				for (int i = 0; i < n; i++) {
+					int j = i == 0 ? n - 1 : i - 1; // the ring is treated as closed
+					double y1 = ry[j], y2 = ry[i];
+					if ((y1 <= yc) == (y2 <= yc)) continue;
+					double x = rx[j] + (yc - y1) * (rx[i] - rx[j]) / (y2 - y1);
+					if (cnt == crossings.length) crossings = Arrays.copyOf(crossings, cnt * 2);
+					crossings[cnt++] = x;
+				}
+				if (cnt < 2) continue;
+				Arrays.sort(crossings, 0, cnt);
+				for (int k = 0; k + 1 < cnt; k += 2) {
+					int from = (int)Math.ceil(crossings[k] - 0.5);
+					int to = (int)Math.ceil(crossings[k+1] - 0.5); // exclusive
+					setSpan(r, from, to, !hole);
+				}
+			}
+		}
+		for (long w: bits) count += Long.bitCount(w);
+	}
+
+	private void setSpan(int r, int from, int to, boolean value) {
+		from = Math.max(from, word0 * 64);
+		to = Math.min(to, (word0 + words) * 64);
+		if (from >= to) return;
+		int base = r * words - word0;
+		int wFrom = floorDiv(from, 64);
+		int wTo = floorDiv(to - 1, 64);
+		for (int w = wFrom; w <= wTo; w++) {
+			long m = -1L;
+			if (w == wFrom) m &= -1L << (from - w * 64);
+			if (w == wTo) m &= -1L >>> (63 - (to - 1 - w * 64));
+			if (value) bits[base + w] |= m;
+			else bits[base + w] &= ~m;
+		}
+	}
+
+	/**
+	 * Number of pixels set in both masks.
+	 */
+	public int intersectionCount(PolygonMask o) {
+		int r0 = Math.max(row0, o.row0);
+		int r1 = Math.min(row0 + rows, o.row0 + o.rows);
+		int w0 = Math.max(word0, o.word0);
+		int w1 = Math.min(word0 + words, o.word0 + o.words);
+		int ret = 0;
+		for (int r = r0; r < r1; r++) {
+			int a = (r - row0) * words - word0;
+			int b = (r - o.row0) * o.words - o.word0;
+			for (int w = w0; w < w1; w++) {
+				ret += Long.bitCount(bits[a + w] & o.bits[b + w]);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Sets the bits of this mask in a larger bitmap of the same layout, whose first row is
+	 * planeRow0 and whose rows are planeWords long starting at word column planeWord0. The
+	 * bitmap must cover the mask.
+	 */
+	public void orInto(long[] plane, int planeRow0, int planeWord0, int planeWords) {
+		for (int r = 0; r < rows; r++) {
+			int a = r * words;
+			int b = (row0 + r - planeRow0) * planeWords + word0 - planeWord0;
+			for (int w = 0; w < words; w++) plane[b + w] |= bits[a + w];
+		}
+	}
+
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * Upper bound of the number of pixels whose bit may differ from the exact shape. A pixel that
+	 * no edge passes through is entirely inside or outside, its centre sample is right.
+	 */
+	public int boundaryCount() {
+		return boundaryCount;
+	}
+
+	public int firstRow() {
+		return row0;
+	}
+
+	public int endRow() {
+		return row0 + rows;
+	}
+
+	public int firstWord() {
+		return word0;
+	}
+
+	public int endWord() {
+		return word0 + words;
+	}
+
+	private static int floorDiv(int a, int b) {
+		int q = a / b;
+		if ((a % b != 0) && ((a < 0) != (b < 0))) q--;
+		return q;
+	}
+}
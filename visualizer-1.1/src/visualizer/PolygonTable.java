@@ -0,0 +1,122 @@
+package visualizer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Polygons of a truth or a solution by image number, see ImageDictionary. The polygons of
+ * an image are sorted by decreasing confidence. An image in the file without polygons (only
+ * empty or ignored ones) has an empty array, images not in the file have null. The table of
+ * a compiled truth file creates the polygons of an image when it is first looked up.
+ */
+public class PolygonTable {
+	private static final Polygon[] NOT_READ = new Polygon[0]; // an image of the compiled truth whose polygons weren't created yet
+
+	public final ImageDictionary dictionary;
+	private volatile Polygon[][] byImage;
+	private CompiledTruth compiled; // null if the table isn't read from a compiled truth
+	private int[] compiledImage; // image number -> image in compiled, -1 if not in it
+
+	public PolygonTable(ImageDictionary dictionary) {
+		this(dictionary, new Polygon[0][]);
+	}
+
+	PolygonTable(ImageDictionary dictionary, Polygon[][] byImage) {
+		this.dictionary = dictionary;
+		this.byImage = byImage;
+	}
+
+	// The arrays are not copied
+	public static PolygonTable of(Map<String, Polygon[]> idToPolygons, ImageDictionary dictionary) {
+		PolygonTable ret = new PolygonTable(dictionary);
+		for (Map.Entry<String, Polygon[]> e: idToPolygons.entrySet()) {
+			ret.set(dictionary.add(e.getKey()), e.getValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * A table of a compiled truth file, only the image ids are read. The polygons of an image
+	 * are created from the mapped file when it is first looked up and kept until forget().
+	 */
+	public static PolygonTable of(CompiledTruth ct, ImageDictionary dictionary) {
+		int[] numbers = new int[ct.imageCount()];
+		int size = 0;
+		for (int i = 0; i < numbers.length; i++) {
+			numbers[i] = dictionary.add(ct.imageId(i));
+			size = Math.max(size, numbers[i] + 1);
+		}
+		PolygonTable ret = new PolygonTable(dictionary, new Polygon[size][]);
+		ret.compiled = ct;
+		ret.compiledImage = new int[size];
+		Arrays.fill(ret.compiledImage, -1);
+		for (int i = 0; i < numbers.length; i++) {
+			ret.byImage[numbers[i]] = NOT_READ;
+			ret.compiledImage[numbers[i]] = i;
+		}
+		return ret;
+	}
+
+	public Polygon[] get(int image) {
+		if (compiled != null) return getCompiled(image);
+		Polygon[][] arr = byImage;
+		return image >= 0 && image < arr.length ? arr[image] : null;
+	}
+
+	// Locked so the polygons of an image are created once, scoring marks matches on them
+	private synchronized Polygon[] getCompiled(int image) {
+		if (image < 0 || image >= byImage.length) return null;
+		Polygon[] ret = byImage[image];
+		if (ret == NOT_READ) {
+			ret = Scorer.compiledPolygons(compiled, compiledImage[image]);
+			byImage[image] = ret;
+		}
+		return ret;
+	}
+
+	// Drops the created polygons of an image of a compiled truth, they are created again when needed
+	public synchronized void forget(int image) {
+		if (compiled != null && image >= 0 && image < compiledImage.length && compiledImage[image] != -1) {
+			byImage[image] = NOT_READ;
+		}
+	}
+
+	public Polygon[] get(String id) {
+		return get(dictionary.indexOf(id));
+	}
+
+	// Replaces the polygons of an image, null removes the image
+	public synchronized void set(int image, Polygon[] polygons) {
+		if (image >= byImage.length) {
+			if (polygons == null) return;
+			byImage = Arrays.copyOf(byImage, Math.max(image + 1, 2 * byImage.length));
+		}
+		byImage[image] = polygons;
+	}
+
+	// Numbers of the images in the table, in increasing order
+	public int[] images() {
+		Polygon[][] arr = byImage;
+		int cnt = 0;
+		for (Polygon[] ps: arr) {
+			if (ps != null) cnt++;
+		}
+		int[] ret = new int[cnt];
+		cnt = 0;
+		for (int i = 0; i < arr.length; i++) {
+			if (arr[i] != null) ret[cnt++] = i;
+		}
+		return ret;
+	}
+
+	public String[] ids() {
+		return dictionary.ids(images());
+	}
+
+	public Map<String, Polygon[]> toMap() {
+		Map<String, Polygon[]> ret = new HashMap<>();
+		for (int image: images()) ret.put(dictionary.id(image), get(image));
+		return ret;
+	}
+}
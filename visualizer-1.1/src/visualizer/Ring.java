@@ -0,0 +1,40 @@
+package visualizer;
+
+public class Ring {
+	public P2[] points;
+	
+	public Ring(P2[] points) {
+		this.points = points;
+	}
+	
+	// Parses "x y z,x y z,...", the warning listener may be null
+	public Ring(String rs, Scorer.WarningListener warnings) {
+		String[] parts = rs.split(",");
+		int cnt = parts.length;
+		double[] xs = new double[cnt];
+		double[] ys = new double[cnt];
+		for (int i = 0; i < cnt; i++) {
+			String s = parts[i];
+			s = s.trim();
+			String[] coords = s.split(" ");
+			xs[i] = Double.parseDouble(coords[0]);
+			ys[i] = Double.parseDouble(coords[1]);
+		}
+		
+		int n = xs.length;
+		points = new P2[n];
+		for (int i = 0; i < n; i++) points[i] = new P2(xs[i], ys[i]);
+		if (n > 1 && !points[0].equals(points[n-1]) && warnings != null) {
+			warnings.warning("Warning: ring not closed: " + rs);
+		}
+	}
+
+	public double area() {
+		// signed area calculated from the points
+		double a = 0;
+		for (int i = 1; i < points.length; i++) {
+			a += (points[i-1].x + points[i].x) * (points[i-1].y - points[i].y);
+		}
+		return a / 2;
+	}
+}
@@ -0,0 +1,822 @@
+package visualizer;
+
+import java.awt.geom.Area;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Scores building polygons without any UI, for use from other Java code:
+ *
+ *   Scorer.Result r = Scorer.score(new File("truth.csv"), new FileReader("solution.csv"), new Scorer.Options());
+ *   double f = r.total.fScore();
+ *
+ * A Scorer is immutable and can be used by any number of threads at the same time. Scoring
+ * changes the solution polygons (match state, IOU score, partner) but never the truth, so a
+ * Scorer created with a truth can score one solution after the other without reloading it.
+ * Truth files loaded by readTruth() are cached until they change on disk.
+ */
+public class Scorer {
+	public static final double MIN_AREA = 20; // polygons smaller than this are ignored
+	private static final int TRUTH_CACHE_SIZE = 4;
+	private static final int BATCH_SIZE = 1 << 20; // characters per parse task of a .gz file
+	private static final String AREA_WARNING = "Warning: building area <= 0";
+	private static final Map<String, CachedTruth> truthCache = new LinkedHashMap<>();
+
+	public static class Options {
+		public double iouThreshold = 0.5;
+		public boolean fastIou = false; // use pixel mask based IOU estimates, see matchFast()
+		public double iouMargin = 0; // added to the error bound of the estimates, see matchFast()
+		public boolean solutionImages = false; // score the images of the solution instead of those of the truth
+		public boolean pixelIou = false; // calculate the pixel level IOU as well, see PixelIou
+		public int parseChunkSize = 4 << 20; // minimum bytes per parse task of an uncompressed file
+	}
+
+	public static class Result {
+		public Map<String, Metrics> perImage = new LinkedHashMap<>(); // in image id order, null for images that can't be scored
+		public Metrics total = new Metrics();
+		public Map<String, PixelIou> pixelPerImage; // like perImage, null if Options.pixelIou is false
+		public PixelIou pixelTotal;
+	}
+
+	// Receives warnings about questionable input, e.g. polygons with no area
+	public interface WarningListener {
+		public void warning(String message);
+	}
+
+	// Selects the images to read
+	public interface ImageFilter {
+		public boolean accept(String imageId);
+	}
+
+	private static class CachedTruth {
+		public long mtime;
+		public long length;
+		public Map<String, Polygon[]> polygons;
+	}
+
+	private final double iouThreshold;
+	private final boolean fastIou;
+	private final double iouMargin;
+	private final boolean solutionImages;
+	private final boolean pixelIou;
+	private final Map<String, Polygon[]> truth; // null if only the per image scoring is used
+	private final AtomicLong estimatedIouCnt = new AtomicLong();
+	private final AtomicLong exactIntersectionCnt = new AtomicLong();
+
+	public Scorer(Options options) {
+		this(options, null);
+	}
+
+	/**
+	 * The options are copied, later changes to them have no effect. The truth map must not
+	 * be changed while the Scorer is in use.
+	 */
+	public Scorer(Options options, Map<String, Polygon[]> truth) {
+		iouThreshold = options.iouThreshold;
+		fastIou = options.fastIou;
+		iouMargin = options.iouMargin;
+		pixelIou = options.pixelIou;
+		solutionImages = options.solutionImages;
+		this.truth = truth;
+	}
+
+	/**
+	 * Scores a solution file against a truth file, the parsed truth is cached.
+	 */
+	public static Result score(File truthFile, Reader solution, Options options) throws Exception {
+		return new Scorer(options, readTruth(truthFile)).score(solution);
+	}
+
+	public static Result score(Reader truth, Reader solution, Options options) throws Exception {
+		return new Scorer(options, readPolygons(new LineNumberReader(truth), true, null, null)).score(solution);
+	}
+
+	public Result score(Reader solution) throws Exception {
+		return score(readPolygons(new LineNumberReader(solution), false, null, null));
+	}
+
+	/**
+	 * Scores in-memory solution polygons, by image id, in order of decreasing confidence. The
+	 * arrays are not reordered, but the match, partner and iouScore fields of their polygons are
+	 * set, so the same polygons must not be scored by two threads at the same time.
+	 */
+	public Result score(Map<String, Polygon[]> solution) {
+		if (truth == null) throw new IllegalStateException("No truth given");
+		Set<String> ids = new TreeSet<>(solutionImages ? solution.keySet() : truth.keySet());
+		Result ret = new Result();
+		for (String id: ids) {
+			Polygon[] sArr = solution.get(id);
+			if (sArr != null) {
+				sArr = sArr.clone();
+				Arrays.sort(sArr);
+			}
+			Metrics m = score(truth.get(id), sArr, false);
+			ret.perImage.put(id, m);
+			if (m != null) ret.total.add(m);
+		}
+		if (pixelIou) {
+			ret.pixelPerImage = PixelIou.of(truth, solution, ids);
+			ret.pixelTotal = PixelIou.total(ret.pixelPerImage.values());
+		}
+		return ret;
+	}
+
+	public Map<String, Polygon[]> getTruth() {
+		return truth;
+	}
+
+	public double iouThreshold() {
+		return iouThreshold;
+	}
+
+	public long estimatedIouCount() {
+		return estimatedIouCnt.get();
+	}
+
+	public long exactIntersectionCount() {
+		return exactIntersectionCnt.get();
+	}
+
+	/**
+	 * Matches solution polygons to truth polygons of one image. Returns null if either is missing.
+	 * Solution polygons get their match state, IOU score and matching truth polygon set, they
+	 * must be sorted by decreasing confidence. Truth polygons are changed only if markTruth is
+	 * true, otherwise the truth can be shared by threads scoring different solutions at the same time.
+	 */
+	public Metrics score(Polygon[] truthPolygons, Polygon[] solutionPolygons, boolean markTruth) {
+		return score(truthPolygons, solutionPolygons, markTruth, null);
+	}
+
+	/**
+	 * Same, exact IOUs are looked up in the cache first and put into it when calculated. The
+	 * cache may be null.
+	 */
+	public Metrics score(Polygon[] truthPolygons, Polygon[] solutionPolygons, boolean markTruth, IouCache cache) {
+		Metrics ret = new Metrics();
+		if (truthPolygons == null || solutionPolygons == null) return null;
+		if (truthPolygons.length == 0 && solutionPolygons.length == 0) {
+			return ret;
+		}
+		int tp = 0;
+		int fp = 0;
+		int fn = 0;
+		boolean[] matched = new boolean[truthPolygons.length];
+		int[] candidates = fastIou ? new int[truthPolygons.length] : null;
+		for (Polygon sP: solutionPolygons) {
+			int bestMatchingT = fastIou ?
+					matchFast(sP, truthPolygons, matched, candidates, cache) :
+					matchExact(sP, truthPolygons, matched, cache);
+			if (bestMatchingT != -1) {
+				tp++;
+				sP.match = Match.TP;
+				sP.partner = truthPolygons[bestMatchingT];
+				matched[bestMatchingT] = true;
+			}
+			else {
+				fp++;
+				sP.match = Match.FP;
+				sP.partner = null;
+			}
+		}
+		for (int tI = 0; tI < truthPolygons.length; tI++) {
+			if (!matched[tI]) fn++;
+		}
+		if (markTruth) markTruth(truthPolygons, solutionPolygons);
+		ret.tp = tp;
+		ret.fp = fp;
+		ret.fn = fn;
+
+		return ret;
+	}
+
+	/**
+	 * Sets the match state and partner of truth polygons from the solution polygons matched to
+	 * them, as score() does with markTruth. The matching can run with markTruth false on another
+	 * thread and the truth be marked later where it is read.
+	 */
+	public static void markTruth(Polygon[] truthPolygons, Polygon[] solutionPolygons) {
+		if (truthPolygons == null || solutionPolygons == null) return;
+		for (Polygon tP: truthPolygons) {
+			tP.match = Match.FN;
+			tP.partner = null;
+		}
+		for (Polygon sP: solutionPolygons) {
+			if (sP.match != Match.TP) continue;
+			sP.partner.match = Match.TP;
+			sP.partner.partner = sP;
+		}
+	}
+
+	/**
+	 * Finds the not yet matched truth polygon that has the highest IOU with the given solution
+	 * polygon. Returns its index if the IOU is above the threshold, -1 otherwise. Sets the
+	 * solution polygon's IOU score.
+	 */
+	private int matchExact(Polygon sP, Polygon[] truthPolygons, boolean[] matched, IouCache cache) {
+		int bestMatchingT = -1;
+		double maxScore = 0;
+		for (int tI = 0; tI < truthPolygons.length; tI++) {
+			if (matched[tI]) continue; // matched already
+			Polygon tP = truthPolygons[tI];
+			if (sP.minx > tP.maxx || sP.maxx < tP.minx) continue;
+			if (sP.miny > tP.maxy || sP.maxy < tP.miny) continue;
+			double score = exactIou(sP, tP, cache);
+			if (score > maxScore) {
+				maxScore = score;
+				bestMatchingT = tI;
+			}
+		}
+		sP.iouScore = maxScore;
+		return maxScore > iouThreshold ? bestMatchingT : -1;
+	}
+
+	private double exactIou(Polygon sP, Polygon tP, IouCache cache) {
+		if (cache != null) {
+			Double cached = cache.get(tP, sP);
+			if (cached != null) return cached;
+		}
+		exactIntersectionCnt.incrementAndGet();
+		double ret = iou(sP, tP);
+		if (cache != null) cache.put(tP, sP, ret);
+		return ret;
+	}
+
+	// IOU of two polygons calculated with java.awt.geom.Area, the reference of all estimates
+	static double iou(Polygon sP, Polygon tP) {
+		Area shape = new Area(sP.getShape());
+		shape.intersect(tP.getShape());
+		double overlap = Math.abs(area(shape));
+		return overlap / (sP.area + tP.area - overlap);
+	}
+
+	// IOU estimated from the pixel masks of two polygons, see PolygonMask
+	static double estimatedIou(Polygon sP, Polygon tP) {
+		return iouOfOverlap(sP.getMask().intersectionCount(tP.getMask()), sP, tP);
+	}
+
+	/**
+	 * How far the exact IOU of two polygons can be from estimatedIou(). Only pixels crossed by
+	 * the boundary of one of the polygons can be sampled wrong, each by at most one pixel of
+	 * area, so the exact intersection is within that many pixels of the sampled one.
+	 */
+	static double estimatedIouError(Polygon sP, Polygon tP) {
+		int overlap = sP.getMask().intersectionCount(tP.getMask());
+		int error = sP.getMask().boundaryCount() + tP.getMask().boundaryCount();
+		double estimate = iouOfOverlap(overlap, sP, tP);
+		return Math.max(estimate - iouOfOverlap(overlap - error, sP, tP), iouOfOverlap(overlap + error, sP, tP) - estimate);
+	}
+
+	/**
+	 * IOU of two polygons with the given intersection area, increases with it. Infinite if
+	 * the union isn't positive, which happens only if an unclosed ring makes a polygon's area
+	 * smaller than its shape; no bound can be given then.
+	 */
+	private static double iouOfOverlap(double overlap, Polygon sP, Polygon tP) {
+		overlap = Math.max(0, overlap);
+		double union = sP.area + tP.area - overlap;
+		return union > 0 ? overlap / union : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Same result as matchExact() but IOU is first estimated from the polygons' pixel masks,
+	 * with an error bound for each pair (see estimatedIouError(), widened by iouMargin). Truth
+	 * polygons whose IOU is at most the threshold even at the upper bound can't be matched, a
+	 * single candidate that is above the threshold even at the lower bound is matched without
+	 * exact calculation. Otherwise the exact IOU of every candidate is calculated, so ties and
+	 * the choice between several candidates are decided as in matchExact(). The displayed IOU
+	 * score is the estimate if the exact value is not known.
+	 */
+	private int matchFast(Polygon sP, Polygon[] truthPolygons, boolean[] matched, int[] candidates, IouCache cache) {
+		int candidateCnt = 0;
+		double maxEstimate = 0;
+		boolean sure = false; // the last candidate is above the threshold at its lower bound
+		for (int tI = 0; tI < truthPolygons.length; tI++) {
+			if (matched[tI]) continue; // matched already
+			Polygon tP = truthPolygons[tI];
+			if (sP.minx > tP.maxx || sP.maxx < tP.minx) continue;
+			if (sP.miny > tP.maxy || sP.maxy < tP.miny) continue;
+			estimatedIouCnt.incrementAndGet();
+			int overlap = sP.getMask().intersectionCount(tP.getMask());
+			int error = sP.getMask().boundaryCount() + tP.getMask().boundaryCount();
+			maxEstimate = Math.max(maxEstimate, iouOfOverlap(overlap, sP, tP));
+			double high = iouOfOverlap(overlap + error, sP, tP);
+			if (high + iouMargin > iouThreshold) {
+				candidates[candidateCnt++] = tI;
+				sure = high != Double.POSITIVE_INFINITY && iouOfOverlap(overlap - error, sP, tP) - iouMargin > iouThreshold;
+			}
+		}
+		sP.iouScore = maxEstimate;
+		if (candidateCnt == 0) return -1;
+		if (candidateCnt == 1 && sure) return candidates[0];
+
+		int bestMatchingT = -1;
+		double maxScore = 0;
+		for (int i = 0; i < candidateCnt; i++) {
+			int tI = candidates[i];
+			double score = exactIou(sP, truthPolygons[tI], cache);
+			if (score > maxScore) {
+				maxScore = score;
+				bestMatchingT = tI;
+			}
+		}
+		if (maxScore > iouThreshold) {
+			sP.iouScore = maxScore;
+			return bestMatchingT;
+		}
+		return -1;
+	}
+
+	// based on http://stackoverflow.com/questions/2263272/how-to-calculate-the-area-of-a-java-awt-geom-area
+	private static double area(Area shape) {
+		PathIterator i = shape.getPathIterator(null);
+		double a = 0.0;
+        double[] coords = new double[6];
+        double startX = Double.NaN, startY = Double.NaN;
+        Line2D segment = new Line2D.Double(Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        while (! i.isDone()) {
+            int segType = i.currentSegment(coords);
+            double x = coords[0], y = coords[1];
+            switch (segType) {
+            case PathIterator.SEG_CLOSE:
+                segment.setLine(segment.getX2(), segment.getY2(), startX, startY);
+                a += area(segment);
+                startX = startY = Double.NaN;
+                segment.setLine(Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+                break;
+            case PathIterator.SEG_LINETO:
+                segment.setLine(segment.getX2(), segment.getY2(), x, y);
+                a += area(segment);
+                break;
+            case PathIterator.SEG_MOVETO:
+                startX = x;
+                startY = y;
+                segment.setLine(Double.NaN, Double.NaN, x, y);
+                break;
+            }
+            i.next();
+        }
+        if (Double.isNaN(a)) {
+            throw new IllegalArgumentException("PathIterator contains an open path");
+        }
+        else {
+            return 0.5 * Math.abs(a);
+        }
+    }
+
+    private static double area(Line2D seg) {
+        return seg.getX1() * seg.getY2() - seg.getX2() * seg.getY1();
+    }
+
+	// Number of truth files kept in memory by readTruth()
+	public static int truthCacheSize() {
+		synchronized (truthCache) {
+			return truthCache.size();
+		}
+	}
+
+	/**
+	 * Reads a truth file, CSV or compiled, and keeps it in memory. Later calls return the same
+	 * map while the file is unchanged, so it must not be modified.
+	 */
+	public static Map<String, Polygon[]> readTruth(File f) throws Exception {
+		String key = f.getCanonicalPath();
+		synchronized (truthCache) {
+			CachedTruth c = truthCache.get(key);
+			if (c != null && c.mtime == f.lastModified() && c.length == f.length()) {
+				truthCache.remove(key); // move to the end, it was used last
+				truthCache.put(key, c);
+				return c.polygons;
+			}
+		}
+		CachedTruth c = new CachedTruth();
+		c.mtime = f.lastModified();
+		c.length = f.length();
+		if (CompiledTruth.isCompiled(f.getPath())) {
+			c.polygons = readCompiled(CompiledTruth.open(f));
+		}
+		else {
+			c.polygons = readPolygons(f, true, null, null);
+		}
+		synchronized (truthCache) {
+			truthCache.put(key, c);
+			if (truthCache.size() > TRUTH_CACHE_SIZE) truthCache.remove(truthCache.keySet().iterator().next());
+		}
+		return c.polygons;
+	}
+
+	public static Map<String, Polygon[]> readCompiled(CompiledTruth ct) {
+		return readCompiled(ct, new ImageDictionary()).toMap();
+	}
+
+	// The polygons of an image are created when it is first looked up, see PolygonTable.of()
+	public static PolygonTable readCompiled(CompiledTruth ct, ImageDictionary dictionary) {
+		return PolygonTable.of(ct, dictionary);
+	}
+
+	public static Polygon[] compiledPolygons(CompiledTruth ct, int image) {
+		int first = ct.firstPolygon(image);
+		Polygon[] ret = new Polygon[ct.endPolygon(image) - first];
+		for (int i = 0; i < ret.length; i++) {
+			int pI = first + i;
+			List<Ring> rings = new Vector<>();
+			for (int rI = ct.firstRing(pI); rI < ct.endRing(pI); rI++) {
+				int firstPoint = ct.firstPoint(rI);
+				P2[] points = new P2[ct.endPoint(rI) - firstPoint];
+				for (int k = 0; k < points.length; k++) {
+					points[k] = new P2(ct.x(firstPoint + k), ct.y(firstPoint + k));
+				}
+				rings.add(new Ring(points));
+			}
+			ret[i] = new Polygon(rings, ct.area(pI), ct.minx(pI), ct.miny(pI), ct.maxx(pI), ct.maxy(pI));
+		}
+		return ret;
+	}
+
+	/**
+	 * Parses polygon lines into polygons by image id, sorted by decreasing confidence. Reads
+	 * only the images accepted by the filter if it is not null. The line number and content
+	 * of a bad line is put into the exception message.
+	 */
+	public static Map<String, Polygon[]> readPolygons(LineNumberReader lnr, boolean truth,
+			ImageFilter filter, WarningListener warnings) throws Exception {
+		return readTable(lnr, truth, filter, new ImageDictionary(), warnings).toMap();
+	}
+
+	/**
+	 * Same as readPolygons() but the polygons are kept by image number, images are numbered
+	 * by the given dictionary.
+	 */
+	public static PolygonTable readTable(LineNumberReader lnr, boolean truth,
+			ImageFilter filter, ImageDictionary dictionary, WarningListener warnings) throws Exception {
+		Chunk c = new Chunk(null);
+		while (c.error == null) {
+			String line = lnr.readLine();
+			if (line == null) break;
+			c.parseLineCollected(line, truth, filter);
+		}
+		List<Chunk> chunks = new Vector<>();
+		chunks.add(c);
+		return merge(chunks, dictionary, warnings);
+	}
+
+	/**
+	 * Same as readPolygons(LineNumberReader, ...) but a large file is parsed by several threads.
+	 * An uncompressed file is split into byte ranges at line boundaries. A .gz file is inflated
+	 * by the calling thread which hands batches of lines to the parser threads. The result,
+	 * warnings and errors are the same as if the file was parsed line by line.
+	 */
+	public static Map<String, Polygon[]> readPolygons(File f, boolean truth,
+			ImageFilter filter, WarningListener warnings) throws Exception {
+		return readTable(f, truth, filter, new ImageDictionary(), warnings, new Options()).toMap();
+	}
+
+	// Of the options only parseChunkSize is used
+	public static PolygonTable readTable(File f, final boolean truth, final ImageFilter filter, 
+			ImageDictionary dictionary, WarningListener warnings, Options options) throws Exception {
+		int threadCnt = Runtime.getRuntime().availableProcessors();
+		boolean gz = f.getName().endsWith(".gz");
+		int chunkSize = options.parseChunkSize;
+		if (threadCnt == 1 || (!gz && f.length() < 2 * chunkSize)) {
+			LineNumberReader lnr = new LineNumberReader(openReader(f));
+			try {
+				return readTable(lnr, truth, filter, dictionary, warnings);
+			}
+			finally {
+				lnr.close();
+			}
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threadCnt);
+		try {
+			final List<Chunk> chunks = new Vector<>();
+			List<Future<?>> futures = new Vector<>();
+			if (gz) {
+				// at most a few batches wait for a parser, so memory doesn't depend on the file size
+				final Semaphore waiting = new Semaphore(2 * threadCnt);
+				LineNumberReader lnr = new LineNumberReader(openReader(f));
+				try {
+					while (true) {
+						final List<String> lines = new Vector<>();
+						int chars = 0;
+						while (chars < BATCH_SIZE) {
+							String line = lnr.readLine();
+							if (line == null) break;
+							lines.add(line);
+							chars += line.length() + 1;
+						}
+						if (lines.isEmpty()) break;
+						final Chunk c = new Chunk(null);
+						chunks.add(c);
+						waiting.acquire();
+						futures.add(pool.submit(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									for (String line: lines) c.parseLineCollected(line, truth, filter);
+								}
+								finally {
+									waiting.release();
+								}
+							}
+						}));
+					}
+				}
+				finally {
+					lnr.close();
+				}
+			}
+			else {
+				long len = f.length();
+				int chunkCnt = (int) Math.min(4 * threadCnt, len / chunkSize);
+				for (int i = 0; i < chunkCnt; i++) {
+					final Chunk c = new Chunk(f);
+					c.start = len * i / chunkCnt;
+					c.end = len * (i + 1) / chunkCnt;
+					chunks.add(c);
+					futures.add(pool.submit(new Runnable() {
+						@Override
+						public void run() {
+							c.parseRange(truth, filter);
+						}
+					}));
+				}
+			}
+			for (Future<?> fu: futures) fu.get();
+			return merge(chunks, dictionary, warnings);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	// Opens a text file, inflating it if its name ends with .gz
+	public static Reader openReader(File f) throws Exception {
+		InputStream in = new FileInputStream(f);
+		if (f.getName().endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+		return new InputStreamReader(in, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Joins the polygons of the chunks in file order, reports their warnings and the first error.
+	 * The images of the chunks are numbered by the dictionary, then each image gets an array of
+	 * the exact size and the polygons are copied into it directly from the chunks.
+	 */
+	private static PolygonTable merge(List<Chunk> chunks, ImageDictionary dictionary, WarningListener warnings) throws Exception {
+		int[][] localToImage = new int[chunks.size()][];
+		int lineBase = 0;
+		for (int k = 0; k < chunks.size(); k++) {
+			Chunk c = chunks.get(k);
+			if (warnings != null) {
+				for (Warning w: c.warnings) {
+					warnings.warning(w.text == null ? w.message : lineMessage(w.message, lineBase + w.line, w.text));
+				}
+			}
+			if (c.error != null) {
+				if (c.errorLine == null) throw c.error; // not a parse error, e.g. the file can't be read
+				throw new Exception("Line #" + (lineBase + c.lineCnt) + ": " + c.errorLine, c.error);
+			}
+			localToImage[k] = new int[c.localIds.size()];
+			for (int i = 0; i < localToImage[k].length; i++) localToImage[k][i] = dictionary.add(c.localIds.get(i));
+			lineBase += c.lineCnt;
+		}
+		int size = dictionary.size(); // may grow meanwhile if the dictionary is shared, not by these images
+		int[] cnt = new int[size];
+		Arrays.fill(cnt, -1);
+		for (int k = 0; k < chunks.size(); k++) {
+			Chunk c = chunks.get(k);
+			for (int image: localToImage[k]) cnt[image] = Math.max(cnt[image], 0);
+			for (int i = 0; i < c.polygonCnt; i++) cnt[localToImage[k][c.polygonImage[i]]]++;
+		}
+		Polygon[][] byImage = new Polygon[size][];
+		for (int image = 0; image < size; image++) {
+			if (cnt[image] >= 0) byImage[image] = new Polygon[cnt[image]];
+		}
+		int[] filled = new int[size];
+		for (int k = 0; k < chunks.size(); k++) {
+			Chunk c = chunks.get(k);
+			for (int i = 0; i < c.polygonCnt; i++) {
+				int image = localToImage[k][c.polygonImage[i]];
+				byImage[image][filled[image]++] = c.polygons[i];
+			}
+		}
+		for (Polygon[] pArr: byImage) {
+			if (pArr != null) Arrays.sort(pArr); // stable, polygons of the same confidence stay in file order
+		}
+		return new PolygonTable(dictionary, byImage);
+	}
+
+	// A warning found in a chunk, merge() formats it once the number of the line in the file is known
+	private static class Warning {
+		public String message;
+		public int line; // counted from the start of the chunk
+		public String text; // the line, shown with its number, null if the message doesn't show it
+
+		public Warning(String message, int line, String text) {
+			this.message = message;
+			this.line = line;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Lines of a file parsed by one thread. Line numbers are counted from the start of the
+	 * chunk, warnings are collected and reported later with the file's line numbers.
+	 */
+	private static class Chunk {
+		public File file;
+		public long start, end; // byte range, a line belongs to the chunk if it starts in the range
+		public int lineCnt;
+		// images are numbered in the order they appear in the chunk, polygon i is of image polygonImage[i]
+		public Map<String, Integer> idToLocal = new HashMap<>();
+		public List<String> localIds = new Vector<>();
+		public Polygon[] polygons = new Polygon[256];
+		public int[] polygonImage = new int[256];
+		public int polygonCnt;
+		private String lastId; // lines are usually grouped by image, the same id needs no lookup
+		private int lastLocal;
+		public List<Warning> warnings = new Vector<>();
+		public Exception error; // the first error, parsing stops there
+		public String errorLine;
+		private WarningListener collector = new WarningListener() {
+			@Override
+			public void warning(String message) {
+				warnings.add(new Warning(message, lineCnt, null));
+			}
+		};
+
+		public Chunk(File file) {
+			this.file = file;
+		}
+
+		private void parseLine(String line, boolean truth, ImageFilter filter) {
+			lineCnt++;
+			line = line.trim();
+			if (!isDataLine(line)) return;
+
+			String imageId = line.substring(0, line.indexOf(","));
+			if (filter != null && !filter.accept(imageId)) return;
+			if (!imageId.equals(lastId)) {
+				Integer local = idToLocal.get(imageId);
+				if (local == null) {
+					local = localIds.size();
+					idToLocal.put(imageId, local);
+					localIds.add(imageId);
+				}
+				lastId = imageId;
+				lastLocal = local;
+			}
+			Polygon p = parsePolygon(line, truth, collector);
+			if (p == null) return;
+			if (p.area <= 0) {
+				if (!truth) warnings.add(new Warning(AREA_WARNING, lineCnt, line));
+				return;
+			}
+			if (polygonCnt == polygons.length) {
+				polygons = Arrays.copyOf(polygons, 2 * polygonCnt);
+				polygonImage = Arrays.copyOf(polygonImage, 2 * polygonCnt);
+			}
+			polygons[polygonCnt] = p;
+			polygonImage[polygonCnt++] = lastLocal;
+		}
+
+		public void parseLineCollected(String line, boolean truth, ImageFilter filter) {
+			if (error != null) return;
+			try {
+				parseLine(line, truth, filter);
+			}
+			catch (Exception e) {
+				error = e;
+				errorLine = line;
+			}
+		}
+
+		public void parseRange(boolean truth, ImageFilter filter) {
+			try {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					// buf[lineStart..filled) is read but not parsed yet, pos is the file position of lineStart
+					long pos = Math.max(0, start - 1);
+					in.getChannel().position(pos);
+					byte[] buf = new byte[1 << 16];
+					int filled = 0, lineStart = 0, scan = 0;
+					boolean skip = start > 0; // the end of the line that started in the previous chunk
+					while (pos < end && error == null) {
+						int nl = -1;
+						for (int i = scan; i < filled; i++) {
+							if (buf[i] == '\n') {
+								nl = i;
+								break;
+							}
+						}
+						if (nl == -1) {
+							// no complete line in the buffer, move the rest to the front and read more
+							System.arraycopy(buf, lineStart, buf, 0, filled - lineStart);
+							filled -= lineStart;
+							lineStart = 0;
+							scan = filled;
+							if (filled == buf.length) buf = Arrays.copyOf(buf, 2 * buf.length);
+							int n = in.read(buf, filled, buf.length - filled);
+							if (n > 0) {
+								filled += n;
+								continue;
+							}
+							if (filled == 0) break;
+							nl = filled; // the last line has no line feed
+						}
+						int len = nl - lineStart;
+						if (!skip) {
+							int trimmed = len > 0 && buf[nl - 1] == '\r' ? len - 1 : len;
+							parseLineCollected(new String(buf, lineStart, trimmed, StandardCharsets.UTF_8), truth, filter);
+						}
+						skip = false;
+						pos += len + 1;
+						lineStart = scan = nl + 1;
+						if (nl == filled) break;
+					}
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	// False for empty lines, comments and the header
+	public static boolean isDataLine(String line) {
+		return !(line.isEmpty() || line.startsWith("#") || line.toLowerCase().startsWith("imageid"));
+	}
+
+	// Returns null if the line has no polygon or it should be ignored
+	public static Polygon parsePolygon(String line, int lineNo, boolean truth, WarningListener warnings) {
+		Polygon p = parsePolygon(line, truth, warnings);
+		if (p == null || p.area > 0) return p;
+		if (!truth && warnings != null) warnings.warning(lineMessage(AREA_WARNING, lineNo, line));
+		return null;
+	}
+
+	private static String lineMessage(String message, int lineNo, String line) {
+		return message + "\nLine #" + lineNo + ": " + line;
+	}
+
+	// Same but polygons with no area are returned too, the callers warn about them
+	private static Polygon parsePolygon(String line, boolean truth, WarningListener warnings) {
+		// ImageId,BuildingId,PolygonWKT_Pix,PolygonWKT_Geo | confidence
+		// 013022223130_Public_img140,1,"POLYGON ((124 364 0,...,124 364 0))","POLYGON ((-43 -22 0,...,-43 -22 0))"
+		// - or
+		// 013022223130_Public_img140,1,"POLYGON ((124 364 0,...,124 364 0))",0.9
+		// - or
+		// imgid,-1,POLYGON EMPTY
+		// - or
+		// imgid,-1,anything
+
+		int pos1 = line.indexOf(",");
+		int pos2 = line.indexOf(",", pos1 + 1);
+		String buildingId = line.substring(pos1 + 1, pos2);
+
+		boolean empty = line.contains("POLYGON EMPTY");
+		if (!empty && buildingId.equals("-1")) {
+			empty = true;
+		}
+		if (empty) return null;
+
+		pos1 = line.indexOf("((");
+		if (pos1 == -1) return null;
+		pos2 = line.indexOf("))", pos1);
+		String pString = line.substring(pos1, pos2+2);
+		Polygon p = new Polygon(pString, warnings);
+		if (p.area <= 0) {
+			return p;
+		}
+		if (p.area < MIN_AREA) {
+			return null;
+		}
+		String confS = line.substring(pos2 + 4);
+		if (!truth) {
+			p.confidence = Double.parseDouble(confS);
+		}
+		return p;
+	}
+}
@@ -0,0 +1,140 @@
+package visualizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line client of ScoringServer. Sends a solution file and prints the report, or, if
+ * -requests is set, sends the same solution many times from several threads and prints
+ * throughput and latency statistics.
+ */
+public class ScoringClient {
+	private String host = "localhost";
+	private int port = 8000;
+	private String solutionPath;
+	private boolean byPath = false;
+
+	// Sends one request, returns the response body
+	private String request() throws Exception {
+		URL url;
+		HttpURLConnection con;
+		if (byPath) {
+			String p = new File(solutionPath).getAbsolutePath();
+			url = new URL("http://" + host + ":" + port + "/score?solution=" + URLEncoder.encode(p, "UTF-8"));
+			con = (HttpURLConnection) url.openConnection();
+			con.setRequestMethod("GET");
+		}
+		else {
+			url = new URL("http://" + host + ":" + port + "/score");
+			con = (HttpURLConnection) url.openConnection();
+			con.setRequestMethod("POST");
+			con.setDoOutput(true);
+			con.setChunkedStreamingMode(64 * 1024);
+			con.setRequestProperty("Content-Type", "text/csv; charset=utf-8");
+			OutputStream os = con.getOutputStream();
+			InputStream is = new FileInputStream(solutionPath);
+			copy(is, os);
+			is.close();
+			os.close();
+		}
+		int code = con.getResponseCode();
+		InputStream is = code < 400 ? con.getInputStream() : con.getErrorStream();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		copy(is, bos);
+		is.close();
+		String body = bos.toString("UTF-8");
+		if (code != 200) throw new Exception("HTTP " + code + ": " + body);
+		return body;
+	}
+
+	private void loadTest(int requestCnt, int threadCnt) throws Exception {
+		final long[] latencies = new long[requestCnt];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[threadCnt];
+		long start = System.nanoTime();
+		for (int i = 0; i < threadCnt; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						int n = next.getAndIncrement();
+						if (n >= latencies.length) break;
+						long t = System.nanoTime();
+						try {
+							request();
+						}
+						catch (Exception e) {
+							errors.incrementAndGet();
+							System.out.println(e.getMessage());
+						}
+						latencies[n] = System.nanoTime() - t;
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t: threads) t.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Arrays.sort(latencies);
+		System.out.println("Requests   : " + requestCnt + " (" + errors.get() + " failed)");
+		System.out.println("Threads    : " + threadCnt);
+		System.out.println("Total time : " + Utils.f(seconds) + " s");
+		System.out.println("Throughput : " + Utils.f(requestCnt / seconds) + " requests/s");
+		System.out.println("Latency p50: " + Utils.f(percentile(latencies, 0.50)) + " ms");
+		System.out.println("Latency p90: " + Utils.f(percentile(latencies, 0.90)) + " ms");
+		System.out.println("Latency p99: " + Utils.f(percentile(latencies, 0.99)) + " ms");
+		System.out.println("Latency max: " + Utils.f(latencies[latencies.length - 1] / 1e6) + " ms");
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		int i = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1e6;
+	}
+
+	private static void copy(InputStream is, OutputStream os) throws Exception {
+		byte[] buf = new byte[64 * 1024];
+		while (true) {
+			int n = is.read(buf);
+			if (n == -1) break;
+			os.write(buf, 0, n);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ScoringClient c = new ScoringClient();
+		int requestCnt = 0;
+		int threadCnt = 4;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-host")) c.host = args[i+1];
+			else if (args[i].equals("-port")) c.port = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-solution")) c.solutionPath = args[i+1];
+			else if (args[i].equals("-by-path")) c.byPath = true;
+			else if (args[i].equals("-requests")) requestCnt = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-threads")) threadCnt = Integer.parseInt(args[i+1]);
+		}
+		if (c.solutionPath == null) exit("-solution not set");
+		if (!new File(c.solutionPath).exists()) exit("Solution file not found: " + c.solutionPath);
+
+		if (requestCnt > 0) {
+			c.loadTest(requestCnt, threadCnt);
+		}
+		else {
+			System.out.print(c.request());
+		}
+	}
+
+	private static void exit(String s) {
+		System.out.println(s);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,152 @@
+package visualizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running scoring service. The truth file is loaded once, solutions are scored against it
+ * on request. Listens on the loopback interface only.
+ *
+ *  POST /score                 : the request body is the solution CSV
+ *  GET  /score?solution=<path> : the solution is read from the given file, which must be in
+ *                                the solution directory; relative paths are resolved against it
+ *  GET  /status                : number of requests served so far
+ *
+ * The response is the same report that the command line mode prints. Without a solution
+ * directory the server reads no files. Errors are answered without the content of the
+ * solution, the details are printed by the server only.
+ */
+public class ScoringServer implements HttpHandler {
+	private Visualizer visualizer;
+	private int port;
+	private int threadCnt;
+	private File solutionDir; // null if GET by path is not allowed
+	private HttpServer server;
+	private AtomicLong requestCnt = new AtomicLong();
+
+	public ScoringServer(Visualizer visualizer, int port, int threadCnt, File solutionDir) throws Exception {
+		this.visualizer = visualizer;
+		this.port = port;
+		this.threadCnt = threadCnt;
+		this.solutionDir = solutionDir == null ? null : solutionDir.getCanonicalFile();
+	}
+
+	public void start() throws Exception {
+		long start = System.currentTimeMillis();
+		visualizer.loadTruth();
+		System.out.println("Truth loaded in " + (System.currentTimeMillis() - start) + " ms");
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/score", this);
+		server.createContext("/status", this);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCnt);
+		server.setExecutor(executor);
+		server.start();
+		System.out.println("Scoring server listening on http://localhost:" + port + "/score using "
+				+ threadCnt + " threads");
+	}
+
+	@Override
+	public void handle(HttpExchange ex) {
+		try {
+			String path = ex.getRequestURI().getPath();
+			if (path.equals("/status")) {
+				send(ex, 200, "Requests served: " + requestCnt.get() + "\n");
+				return;
+			}
+			String method = ex.getRequestMethod();
+			Reader in = null;
+			if (method.equals("POST")) {
+				in = new InputStreamReader(ex.getRequestBody(), "UTF-8");
+			}
+			else if (method.equals("GET")) {
+				String solutionPath = getParam(ex, "solution");
+				if (solutionPath == null) {
+					send(ex, 400, "Parameter 'solution' not set.\n");
+					return;
+				}
+				File f = solutionFile(solutionPath);
+				if (f == null) {
+					send(ex, 403, "Solutions are read only from the directory given by -server-dir.\n");
+					return;
+				}
+				in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+			}
+			else {
+				send(ex, 405, "Use GET or POST.\n");
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			String result;
+			try {
+				result = visualizer.scoreSolution(in);
+			}
+			finally {
+				in.close();
+			}
+			long n = requestCnt.incrementAndGet();
+			System.out.println("Request #" + n + " scored in " + (System.currentTimeMillis() - start) + " ms");
+			send(ex, 200, result);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			try {
+				send(ex, 400, "Error: the solution can't be scored, see the server output for details.\n");
+			}
+			catch (Exception e2) {
+				e2.printStackTrace();
+			}
+		}
+		finally {
+			ex.close();
+		}
+	}
+
+	// The file of a GET request if it is in the solution directory, otherwise null
+	private File solutionFile(String path) throws Exception {
+		if (solutionDir == null) return null;
+		File f = new File(path);
+		if (!f.isAbsolute()) f = new File(solutionDir, path);
+		f = f.getCanonicalFile();
+		for (File p = f.getParentFile(); p != null; p = p.getParentFile()) {
+			if (p.equals(solutionDir)) return f;
+		}
+		return null;
+	}
+
+	private static String getParam(HttpExchange ex, String name) throws Exception {
+		String query = ex.getRequestURI().getRawQuery();
+		if (query == null) return null;
+		for (String part: query.split("&")) {
+			int pos = part.indexOf("=");
+			if (pos == -1) continue;
+			if (part.substring(0, pos).equals(name)) {
+				return URLDecoder.decode(part.substring(pos + 1), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	private static void send(HttpExchange ex, int code, String body) throws Exception {
+		byte[] bytes = body.getBytes("UTF-8");
+		ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		ex.sendResponseHeaders(code, bytes.length);
+		OutputStream os = ex.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+}
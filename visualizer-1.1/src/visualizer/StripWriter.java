@@ -0,0 +1,303 @@
+package visualizer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes 8-bit grey scale images row by row so the whole image never has to be in memory.
+ * Supported types are png and tif. A writer can be reused for any number of images one after
+ * the other, its compression buffers are kept between them.
+ */
+public abstract class StripWriter {
+	protected int level; // compression level 0..9, -1 for the default of the type
+	protected int width;
+	protected int height;
+	protected int rowsWritten;
+
+	public static boolean supports(String type) {
+		return type.equals("png") || type.equals("tif");
+	}
+
+	public static StripWriter create(String type, int level) {
+		StripWriter ret;
+		if (type.equals("png")) ret = new Png();
+		else if (type.equals("tif")) ret = new Tiff();
+		else throw new IllegalArgumentException("Unsupported image type: " + type);
+		ret.level = level;
+		return ret;
+	}
+
+	public void start(File out, int width, int height) throws Exception {
+		this.width = width;
+		this.height = height;
+		rowsWritten = 0;
+		open(out);
+	}
+
+	/**
+	 * Writes the next rows, grey[x + y * width] is the pixel at column x of the y-th of these rows.
+	 */
+	public void writeRows(byte[] grey, int rows) throws Exception {
+		if (rowsWritten + rows > height) throw new IllegalStateException("Too many rows");
+		for (int y = 0; y < rows; y++) writeRow(grey, y * width);
+		rowsWritten += rows;
+	}
+
+	public void finish() throws Exception {
+		if (rowsWritten != height) throw new IllegalStateException("Image not complete: " + rowsWritten + " of " + height + " rows");
+		close();
+	}
+
+	protected abstract void open(File out) throws Exception;
+	protected abstract void writeRow(byte[] grey, int offset) throws Exception;
+	protected abstract void close() throws Exception;
+
+	private static class Png extends StripWriter {
+		private DataOutputStream out;
+		private Deflater deflater;
+		private DeflaterOutputStream idat;
+		private byte[] prev = new byte[0];
+		private byte[][] filtered = new byte[3][0];
+		private CRC32 crc = new CRC32();
+
+		@Override
+		protected void open(File f) throws Exception {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+			out.write(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+			byte[] ihdr = new byte[13];
+			putInt(ihdr, 0, width);
+			putInt(ihdr, 4, height);
+			ihdr[8] = 8; // bit depth
+			ihdr[9] = 0; // grey scale
+			chunk("IHDR", ihdr, ihdr.length);
+			if (deflater == null) deflater = new Deflater(level == -1 ? Deflater.DEFAULT_COMPRESSION : level);
+			deflater.reset();
+			idat = new DeflaterOutputStream(new ChunkStream(), deflater, 1 << 16);
+			if (prev.length != width) {
+				prev = new byte[width];
+				for (int i = 0; i < 3; i++) filtered[i] = new byte[width];
+			}
+			else {
+				Arrays.fill(prev, (byte) 0);
+			}
+		}
+
+		// Uses the filter (none, sub or up) that gives the smallest sum of absolute differences
+		@Override
+		protected void writeRow(byte[] grey, int offset) throws Exception {
+			int n = width;
+			long sumNone = 0, sumSub = 0, sumUp = 0;
+			byte left = 0;
+			for (int i = 0; i < n; i++) {
+				byte c = grey[offset + i];
+				byte sub = (byte) (c - left);
+				byte up = (byte) (c - prev[i]);
+				filtered[0][i] = c;
+				filtered[1][i] = sub;
+				filtered[2][i] = up;
+				sumNone += Math.abs(c);
+				sumSub += Math.abs(sub);
+				sumUp += Math.abs(up);
+				left = c;
+			}
+			int best = 0;
+			if (sumSub < sumNone) best = 1;
+			if (sumUp < Math.min(sumNone, sumSub)) best = 2;
+			idat.write(best);
+			idat.write(filtered[best], 0, n);
+			System.arraycopy(grey, offset, prev, 0, n);
+		}
+
+		@Override
+		protected void close() throws Exception {
+			idat.close(); // flushes the last IDAT chunk, the deflater is kept for the next image
+			chunk("IEND", new byte[0], 0);
+			out.close();
+		}
+
+		private void chunk(String type, byte[] data, int len) throws IOException {
+			byte[] t = type.getBytes("US-ASCII");
+			crc.reset();
+			crc.update(t);
+			crc.update(data, 0, len);
+			out.writeInt(len);
+			out.write(t);
+			out.write(data, 0, len);
+			out.writeInt((int) crc.getValue());
+		}
+
+		// Compressed data is split into IDAT chunks of up to 64 KB
+		private class ChunkStream extends OutputStream {
+			private byte[] buf = new byte[1 << 16];
+			private int len = 0;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int n) throws IOException {
+				while (n > 0) {
+					int k = Math.min(n, buf.length - len);
+					System.arraycopy(b, off, buf, len, k);
+					len += k;
+					off += k;
+					n -= k;
+					if (len == buf.length) flush();
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if (len == 0) return;
+				chunk("IDAT", buf, len);
+				len = 0;
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Baseline TIFF, uncompressed if the level is 0 or -1, Deflate compressed with horizontal
+	 * differencing otherwise. Strips are written as they are completed, the directory follows
+	 * them at the end of the file and its position is patched into the header.
+	 */
+	private static class Tiff extends StripWriter {
+		private File file;
+		private DataOutputStream out;
+		private long pos; // bytes written so far
+		private int rowsPerStrip;
+		private byte[] strip = new byte[0];
+		private int stripRows;
+		private byte[] packed = new byte[0];
+		private Deflater deflater;
+		private List<Long> offsets = new Vector<>();
+		private List<Long> byteCounts = new Vector<>();
+
+		private boolean compressed() {
+			return level > 0;
+		}
+
+		@Override
+		protected void open(File f) throws Exception {
+			file = f;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+			rowsPerStrip = Math.max(1, (1 << 16) / width);
+			if (strip.length < rowsPerStrip * width) strip = new byte[rowsPerStrip * width];
+			stripRows = 0;
+			offsets.clear();
+			byteCounts.clear();
+			if (compressed() && deflater == null) deflater = new Deflater(level);
+			out.write(new byte[] {'M', 'M'});
+			out.writeShort(42);
+			out.writeInt(0); // directory offset, set at the end
+			pos = 8;
+		}
+
+		@Override
+		protected void writeRow(byte[] grey, int offset) throws Exception {
+			System.arraycopy(grey, offset, strip, stripRows * width, width);
+			stripRows++;
+			if (stripRows == rowsPerStrip) writeStrip();
+		}
+
+		private void writeStrip() throws Exception {
+			int len = stripRows * width;
+			offsets.add(pos);
+			if (!compressed()) {
+				out.write(strip, 0, len);
+			}
+			else {
+				// horizontal differencing, from right to left so the originals are still there
+				for (int r = 0; r < stripRows; r++) {
+					int base = r * width;
+					for (int i = width - 1; i > 0; i--) strip[base + i] -= strip[base + i - 1];
+				}
+				deflater.reset();
+				deflater.setInput(strip, 0, len);
+				deflater.finish();
+				if (packed.length < len + 64) packed = new byte[len + len / 8 + 64];
+				int n = 0;
+				while (!deflater.finished()) {
+					if (n == packed.length) packed = Arrays.copyOf(packed, packed.length * 2);
+					n += deflater.deflate(packed, n, packed.length - n);
+				}
+				out.write(packed, 0, n);
+				len = n;
+			}
+			byteCounts.add((long) len);
+			pos += len;
+			if (pos % 2 != 0) {
+				out.write(0);
+				pos++;
+			}
+			stripRows = 0;
+		}
+
+		@Override
+		protected void close() throws Exception {
+			if (stripRows > 0) writeStrip();
+			long ifd = pos;
+			int stripCnt = offsets.size();
+			int entryCnt = compressed() ? 10 : 9;
+			long extra = ifd + 2 + entryCnt * 12 + 4; // values that don't fit in the entries
+			long offsetsPos = extra;
+			long countsPos = offsetsPos + 4 * stripCnt;
+			out.writeShort(entryCnt);
+			entry(256, 4, 1, width);
+			entry(257, 4, 1, height);
+			entry(258, 3, 1, 8 << 16); // short values are left aligned
+			entry(259, 3, 1, (compressed() ? 8 : 1) << 16);
+			entry(262, 3, 1, 1 << 16); // black is zero
+			entry(273, 4, stripCnt, stripCnt == 1 ? offsets.get(0) : offsetsPos);
+			entry(277, 3, 1, 1 << 16);
+			entry(278, 4, 1, rowsPerStrip);
+			entry(279, 4, stripCnt, stripCnt == 1 ? byteCounts.get(0) : countsPos);
+			if (compressed()) entry(317, 3, 1, 2 << 16); // horizontal differencing
+			out.writeInt(0); // no more directories
+			if (stripCnt > 1) {
+				for (long o: offsets) out.writeInt((int) o);
+				for (long c: byteCounts) out.writeInt((int) c);
+			}
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(4);
+				raf.writeInt((int) ifd);
+			}
+			finally {
+				raf.close();
+			}
+		}
+
+		private void entry(int tag, int type, int cnt, long value) throws Exception {
+			out.writeShort(tag);
+			out.writeShort(type);
+			out.writeInt(cnt);
+			out.writeInt((int) value);
+		}
+	}
+
+	private static void putInt(byte[] b, int pos, int v) {
+		b[pos] = (byte) (v >>> 24);
+		b[pos + 1] = (byte) (v >>> 16);
+		b[pos + 2] = (byte) (v >>> 8);
+		b[pos + 3] = (byte) v;
+	}
+}
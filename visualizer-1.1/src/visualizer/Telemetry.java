@@ -0,0 +1,280 @@
+package visualizer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timing of the slow operations of the tool, so real sessions can be profiled with standard
+ * JDK tools. Every operation is
+ *  - committed as a JDK Flight Recorder event (visualizer.TileDecode etc.) if the tool runs on
+ *    a JDK that has JFR (11 or later) and a recording is active, e.g. started with
+ *    -XX:StartFlightRecording or from JDK Mission Control,
+ *  - added to a rolling window of latencies, shown over JMX as visualizer:type=Latency,name=<op>.
+ * Cache sizes and the heap used by band data are shown as visualizer:type=Resources.
+ *
+ * The code is compiled for Java 7, so the JFR event types are created at runtime through
+ * reflection, there is no dependency on jdk.jfr. Without JFR only the JMX part works.
+ * Creating the event types and registering the MBeans takes most of a second, it is done on a
+ * background thread; operations that end before it is done only have their latency recorded.
+ *
+ *   Telemetry.Span s = Telemetry.begin(Telemetry.Op.TILE_DECODE);
+ *   ...
+ *   s.end(path, pixels, bands);
+ */
+public class Telemetry {
+	private static final int WINDOW = 1024; // latencies kept per operation
+
+	public enum Op {
+		TILE_DECODE("TileDecode", "Tile Decode", "Path", "Pixels", "Bands"),
+		TRIPLET_COMPOSE("TripletCompose", "Triplet Composition", "Image Id", "Pixels", "Triplet"),
+		PAINT("Paint", "Map Paint", "Image Id", "Pixels", "Polygons Drawn"),
+		BAND_EXTRACT("BandExtract", "Band Extraction", "Path", "Pixels", "Bands");
+
+		private final String eventName;
+		private final String label;
+		private final String[] fieldLabels; // of the subject, pixels and count fields
+		private final Latency latency = new Latency();
+		private Object jfrFactory; // jdk.jfr.EventFactory, null if JFR is not available
+
+		private Op(String eventName, String label, String... fieldLabels) {
+			this.eventName = eventName;
+			this.label = label;
+			this.fieldLabels = fieldLabels;
+		}
+
+		public Latency latency() {
+			return latency;
+		}
+	}
+
+	// A running operation, end() records it
+	public static class Span {
+		private Op op;
+		private long start;
+		private Object event; // jdk.jfr.Event, null if JFR is not available or the event is disabled
+
+		public void end(String subject, long pixels, long count) {
+			long nanos = System.nanoTime() - start;
+			op.latency.add(nanos);
+			if (event == null) return;
+			try {
+				jfrEnd.invoke(event);
+				if (!(Boolean) jfrShouldCommit.invoke(event)) return;
+				jfrSet.invoke(event, 0, subject);
+				jfrSet.invoke(event, 1, pixels);
+				jfrSet.invoke(event, 2, count);
+				jfrCommit.invoke(event);
+			}
+			catch (Exception e) {
+				// telemetry must never break the tool
+			}
+		}
+	}
+
+	public interface LatencyMBean {
+		public long getCount();
+		public double getP50Millis();
+		public double getP90Millis();
+		public double getP99Millis();
+		public double getMaxMillis();
+		public void reset();
+	}
+
+	// The last WINDOW latencies of an operation and the total count
+	public static class Latency implements LatencyMBean {
+		private long[] nanos = new long[WINDOW];
+		private int size;
+		private int next;
+		private long count;
+
+		public synchronized void add(long ns) {
+			nanos[next] = ns;
+			next = (next + 1) % WINDOW;
+			size = Math.min(size + 1, WINDOW);
+			count++;
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		// The p-th percentile of the window in milliseconds, 0 if it is empty
+		public double percentileMillis(double p) {
+			long[] sorted;
+			synchronized (this) {
+				if (size == 0) return 0;
+				sorted = Arrays.copyOf(nanos, size);
+			}
+			Arrays.sort(sorted);
+			int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+		}
+
+		public double getP50Millis() {
+			return percentileMillis(50);
+		}
+
+		public double getP90Millis() {
+			return percentileMillis(90);
+		}
+
+		public double getP99Millis() {
+			return percentileMillis(99);
+		}
+
+		public double getMaxMillis() {
+			return percentileMillis(100);
+		}
+
+		public synchronized void reset() {
+			size = 0;
+			next = 0;
+			count = 0;
+		}
+	}
+
+	public interface ResourcesMBean {
+		public int getTruthCacheEntries();
+		public int getBandStatsImages();
+		public int getLoadedViews();
+		public long getBandDataBytes();
+	}
+
+	/**
+	 * Sizes reported by the code that owns the data. The band data of the views of the current
+	 * image is counted once per distinct channel array, views share the bands they have in common.
+	 */
+	public static class Resources implements ResourcesMBean {
+		private AtomicLong bandStatsImages = new AtomicLong();
+		private AtomicLong loadedViews = new AtomicLong();
+		private AtomicLong bandDataBytes = new AtomicLong();
+
+		public int getTruthCacheEntries() {
+			return Scorer.truthCacheSize();
+		}
+
+		public int getBandStatsImages() {
+			return (int) bandStatsImages.get();
+		}
+
+		public int getLoadedViews() {
+			return (int) loadedViews.get();
+		}
+
+		public long getBandDataBytes() {
+			return bandDataBytes.get();
+		}
+
+		public void setBandStatsImages(int n) {
+			bandStatsImages.set(n);
+		}
+
+		public void setBandData(int views, long bytes) {
+			loadedViews.set(views);
+			bandDataBytes.set(bytes);
+		}
+	}
+
+	private static final Resources resources = new Resources();
+	private static Method jfrNewEvent, jfrBegin, jfrEnd, jfrShouldCommit, jfrSet, jfrCommit;
+	private static volatile boolean jfrReady; // set after the fields above, begin() creates no events before
+	private static final Thread setup;
+
+	static {
+		setup = new Thread(new Runnable() {
+			public void run() {
+				initJfr();
+				jfrReady = true;
+				try {
+					MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+					for (Op op: Op.values()) {
+						server.registerMBean(op.latency, new ObjectName("visualizer:type=Latency,name=" + op.eventName));
+					}
+					server.registerMBean(resources, new ObjectName("visualizer:type=Resources"));
+				}
+				catch (Exception e) {
+					// e.g. registered already by another class loader, the tool works without it
+				}
+			}
+		}, "Telemetry setup");
+		setup.setDaemon(true);
+		setup.start();
+	}
+
+	// Waits until the event types and MBeans are set up, so that a benchmark doesn't time the setup
+	public static void awaitSetup() throws InterruptedException {
+		setup.join();
+	}
+
+	public static Span begin(Op op) {
+		Span s = new Span();
+		s.op = op;
+		if (jfrReady && op.jfrFactory != null) {
+			try {
+				Object event = jfrNewEvent.invoke(op.jfrFactory);
+				jfrBegin.invoke(event);
+				s.event = event;
+			}
+			catch (Exception e) {
+				// no event, only the latency is recorded
+			}
+		}
+		s.start = System.nanoTime();
+		return s;
+	}
+
+	public static Resources resources() {
+		return resources;
+	}
+
+	// Creates an event type per operation with jdk.jfr.EventFactory, if there is one
+	private static void initJfr() {
+		try {
+			Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Class<?> nameClass = Class.forName("jdk.jfr.Name");
+			Class<?> labelClass = Class.forName("jdk.jfr.Label");
+			Class<?> categoryClass = Class.forName("jdk.jfr.Category");
+			Class<?> stackTraceClass = Class.forName("jdk.jfr.StackTrace");
+			Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+			Constructor<?> value = valueClass.getConstructor(Class.class, String.class, List.class);
+			Method create = factoryClass.getMethod("create", List.class, List.class);
+			Class<?>[] types = {String.class, long.class, long.class};
+			String[] fieldNames = {"subject", "pixels", "count"};
+			for (Op op: Op.values()) {
+				List<Object> annotations = new Vector<>();
+				annotations.add(annotation.newInstance(nameClass, "visualizer." + op.eventName));
+				annotations.add(annotation.newInstance(labelClass, op.label));
+				annotations.add(annotation.newInstance(categoryClass, new String[] {"Visualizer"}));
+				annotations.add(annotation.newInstance(stackTraceClass, false)); // would only show the reflection calls
+				List<Object> fields = new Vector<>();
+				for (int i = 0; i < 3; i++) {
+					List<Object> fieldAnnotations = new Vector<>();
+					fieldAnnotations.add(annotation.newInstance(labelClass, op.fieldLabels[i]));
+					fields.add(value.newInstance(types[i], fieldNames[i], fieldAnnotations));
+				}
+				op.jfrFactory = create.invoke(null, annotations, fields);
+			}
+			jfrNewEvent = factoryClass.getMethod("newEvent");
+			jfrBegin = eventClass.getMethod("begin");
+			jfrEnd = eventClass.getMethod("end");
+			jfrShouldCommit = eventClass.getMethod("shouldCommit");
+			jfrSet = eventClass.getMethod("set", int.class, Object.class);
+			jfrCommit = eventClass.getMethod("commit");
+		}
+		catch (Throwable e) {
+			// Java 7-10 or a JDK without the jdk.jfr module
+			for (Op op: Op.values()) op.jfrFactory = null;
+		}
+	}
+}
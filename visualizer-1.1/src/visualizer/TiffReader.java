@@ -0,0 +1,508 @@
+package visualizer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Reader of the plain TIFF files used by SpaceNet: 8 or 16 bit integer samples, stripped or
+ * tiled, chunky or planar, uncompressed, LZW or Deflate compressed, optionally with horizontal
+ * differencing. Samples are decoded straight into one int array per band. Only the blocks that
+ * overlap the requested region are read.
+ *
+ * Other files (BigTIFF, floating point samples, JPEG compression, palettes etc.) are rejected
+ * with an UnsupportedOperationException, readBands() reads them with ImageIO instead. It also
+ * falls back to ImageIO if decoding fails, the old reader may cope with files this one can't.
+ */
+public class TiffReader {
+	private static final int NONE = 1;
+	private static final int LZW = 5;
+	private static final int DEFLATE = 8;
+	private static final int DEFLATE_OLD = 32946;
+
+	private FileChannel channel;
+	private RandomAccessFile raf;
+	private ByteOrder order;
+	private int width;
+	private int height;
+	private int bandCnt;
+	private int bytesPerSample;
+	private boolean signed;
+	private boolean planar;
+	private int compression;
+	private int predictor;
+	private int blockW;  // tile size, or image width and rows per strip for stripped files
+	private int blockH;
+	private boolean tiled;
+	private int blocksAcross;
+	private int blocksDown;
+	private long[] blockOffsets;
+	private long[] blockByteCounts;
+
+	/**
+	 * Sample values of an image or image region, planes[b][x + y * width] is the sample of
+	 * band b at (x, y).
+	 */
+	public static class Bands {
+		public int width;
+		public int height;
+		public int[][] planes;
+		public int bitsPerSample = 8;
+
+		public Bands(int width, int height, int bandCnt) {
+			this.width = width;
+			this.height = height;
+			planes = new int[bandCnt][width * height];
+		}
+	}
+
+	public static TiffReader open(File f) throws Exception {
+		TiffReader r = new TiffReader();
+		r.raf = new RandomAccessFile(f, "r");
+		r.channel = r.raf.getChannel();
+		try {
+			r.readHeader();
+		}
+		catch (Exception e) {
+			r.close();
+			throw e;
+		}
+		return r;
+	}
+
+	/**
+	 * Reads all bands of a file, falls back to ImageIO if the file is not supported by this
+	 * reader or can't be decoded by it.
+	 */
+	public static Bands readBands(File f) throws Exception {
+		Telemetry.Span span = Telemetry.begin(Telemetry.Op.TILE_DECODE);
+		Bands ret = null;
+		try {
+			TiffReader r;
+			try {
+				r = open(f);
+			}
+			catch (UnsupportedOperationException e) {
+				ret = readWithImageIO(f);
+				return ret;
+			}
+			try {
+				ret = r.read(0, 0, r.width, r.height);
+				return ret;
+			}
+			catch (Exception e) {
+				try {
+					ret = readWithImageIO(f);
+					return ret;
+				}
+				catch (Exception e2) {
+					e.addSuppressed(e2);
+					throw e;
+				}
+			}
+			finally {
+				r.close();
+			}
+		}
+		finally {
+			if (ret == null) span.end(f.getPath(), 0, 0);
+			else span.end(f.getPath(), (long) ret.width * ret.height, ret.planes.length);
+		}
+	}
+
+	// The old way of reading images, used for files this reader can't handle
+	public static Bands readWithImageIO(File f) throws Exception {
+		BufferedImage img = ImageIO.read(f);
+		if (img == null) throw new Exception("Unknown image format: " + f.getAbsolutePath());
+		Raster raster = img.getRaster();
+		int w = img.getWidth();
+		int h = img.getHeight();
+		Bands ret = new Bands(w, h, raster.getNumBands());
+		for (int size: raster.getSampleModel().getSampleSize()) ret.bitsPerSample = Math.max(ret.bitsPerSample, size);
+		int[] row = new int[w];
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			int[] plane = ret.planes[b];
+			for (int j = 0; j < h; j++) {
+				raster.getSamples(0, j, w, 1, b, row);
+				System.arraycopy(row, 0, plane, j * w, w);
+			}
+		}
+		return ret;
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+	public int getBandCount() { return bandCnt; }
+	public int getBlockHeight() { return blockH; } // rows per strip or tile
+
+	public void close() throws Exception {
+		raf.close();
+	}
+
+	private void readHeader() throws Exception {
+		ByteBuffer head = readBytes(0, 8, ByteOrder.BIG_ENDIAN);
+		int bom = head.getShort() & 0xffff;
+		if (bom == 0x4949) order = ByteOrder.LITTLE_ENDIAN;
+		else if (bom == 0x4d4d) order = ByteOrder.BIG_ENDIAN;
+		else throw new UnsupportedOperationException("Not a TIFF file");
+		head.order(order);
+		int magic = head.getShort() & 0xffff;
+		if (magic != 42) throw new UnsupportedOperationException("Unsupported TIFF version: " + magic);
+		long ifd = head.getInt() & 0xffffffffL;
+
+		ByteBuffer countBuf = readBytes(ifd, 2, order);
+		int entryCnt = countBuf.getShort() & 0xffff;
+		ByteBuffer entries = readBytes(ifd + 2, entryCnt * 12, order);
+		Map<Integer, long[]> tags = new HashMap<>();
+		for (int i = 0; i < entryCnt; i++) {
+			int tag = entries.getShort() & 0xffff;
+			int type = entries.getShort() & 0xffff;
+			long cnt = entries.getInt() & 0xffffffffL;
+			int size = type == 3 ? 2 : type == 4 ? 4 : type == 1 ? 1 : -1;
+			if (size == -1) { // not a tag we need
+				entries.getInt();
+				continue;
+			}
+			ByteBuffer vb;
+			if (size * cnt <= 4) {
+				vb = entries.slice().order(order);
+				entries.getInt();
+			}
+			else {
+				long pos = entries.getInt() & 0xffffffffL;
+				vb = readBytes(pos, (int)(size * cnt), order);
+			}
+			long[] values = new long[(int)cnt];
+			for (int k = 0; k < cnt; k++) {
+				if (size == 1) values[k] = vb.get() & 0xff;
+				else if (size == 2) values[k] = vb.getShort() & 0xffff;
+				else values[k] = vb.getInt() & 0xffffffffL;
+			}
+			tags.put(tag, values);
+		}
+
+		width = (int)tag(tags, 256, -1);
+		height = (int)tag(tags, 257, -1);
+		bandCnt = (int)tag(tags, 277, 1);
+		if (width <= 0 || height <= 0) throw new UnsupportedOperationException("Image size not set");
+		long[] bits = tags.get(258);
+		int bps = bits == null ? 1 : (int)bits[0];
+		if (bits != null) for (long b: bits) if (b != bps) throw new UnsupportedOperationException("Mixed sample sizes");
+		if (bps != 8 && bps != 16) throw new UnsupportedOperationException("Unsupported sample size: " + bps);
+		bytesPerSample = bps / 8;
+		long[] formats = tags.get(339);
+		int format = formats == null ? 1 : (int)formats[0];
+		if (format != 1 && format != 2) throw new UnsupportedOperationException("Unsupported sample format: " + format);
+		signed = format == 2;
+		int photometric = (int)tag(tags, 262, 1);
+		if (photometric != 1 && photometric != 2) throw new UnsupportedOperationException("Unsupported photometric interpretation: " + photometric);
+		compression = (int)tag(tags, 259, NONE);
+		if (compression != NONE && compression != LZW && compression != DEFLATE && compression != DEFLATE_OLD) {
+			throw new UnsupportedOperationException("Unsupported compression: " + compression);
+		}
+		predictor = compression == NONE ? 1 : (int)tag(tags, 317, 1); // like libtiff, ignored if uncompressed
+		if (predictor != 1 && predictor != 2) throw new UnsupportedOperationException("Unsupported predictor: " + predictor);
+		planar = tag(tags, 284, 1) == 2;
+
+		tiled = tags.containsKey(322);
+		if (tiled) {
+			blockW = (int)tag(tags, 322, -1);
+			blockH = (int)tag(tags, 323, -1);
+			blockOffsets = tags.get(324);
+			blockByteCounts = tags.get(325);
+		}
+		else {
+			blockW = width;
+			blockH = (int)Math.min(tag(tags, 278, height), height);
+			blockOffsets = tags.get(273);
+			blockByteCounts = tags.get(279);
+		}
+		if (blockW <= 0 || blockH <= 0 || blockOffsets == null || blockByteCounts == null) {
+			throw new UnsupportedOperationException("Missing strip or tile layout");
+		}
+		blocksAcross = (width + blockW - 1) / blockW;
+		blocksDown = (height + blockH - 1) / blockH;
+		int blockCnt = blocksAcross * blocksDown * (planar ? bandCnt : 1);
+		if (blockOffsets.length < blockCnt || blockByteCounts.length < blockCnt) {
+			throw new UnsupportedOperationException("Missing strip or tile offsets");
+		}
+	}
+
+	private static long tag(Map<Integer, long[]> tags, int tag, long def) {
+		long[] v = tags.get(tag);
+		return v == null || v.length == 0 ? def : v[0];
+	}
+
+	/**
+	 * Reads all bands of a region of the image.
+	 */
+	public Bands read(int x, int y, int w, int h) throws Exception {
+		if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) {
+			throw new IllegalArgumentException("Region outside of the image: " + x + "," + y + "," + w + "," + h);
+		}
+		Bands ret = new Bands(w, h, bandCnt);
+		ret.bitsPerSample = bytesPerSample * 8;
+		int bx0 = x / blockW, bx1 = (x + w - 1) / blockW;
+		int by0 = y / blockH, by1 = (y + h - 1) / blockH;
+		int planeCnt = planar ? bandCnt : 1;
+		int samplesPerPixel = planar ? 1 : bandCnt;
+		byte[] raw = null;
+		byte[] packed = null;
+		for (int p = 0; p < planeCnt; p++) {
+			for (int by = by0; by <= by1; by++) {
+				for (int bx = bx0; bx <= bx1; bx++) {
+					int index = p * blocksAcross * blocksDown + by * blocksAcross + bx;
+					// strips at the bottom may be shorter, tiles are always complete
+					int rows = tiled ? blockH : Math.min(blockH, height - by * blockH);
+					int rowBytes = blockW * samplesPerPixel * bytesPerSample;
+					int size = rows * rowBytes;
+					if (raw == null || raw.length < size) raw = new byte[size];
+					int byteCnt = (int)blockByteCounts[index];
+					if (packed == null || packed.length < byteCnt) packed = new byte[byteCnt];
+					readFully(blockOffsets[index], packed, byteCnt);
+					decompress(packed, byteCnt, raw, size);
+					if (predictor == 2) undoPredictor(raw, rows, samplesPerPixel);
+					copyBlock(raw, rowBytes, samplesPerPixel, p, bx * blockW, by * blockH, rows, ret, x, y);
+				}
+			}
+		}
+		return ret;
+	}
+
+	// Copies the part of a decoded block that is inside the region
+	private void copyBlock(byte[] raw, int rowBytes, int samplesPerPixel, int plane, int blockX, int blockY, int rows,
+			Bands out, int x, int y) {
+		int i0 = Math.max(blockX, x), i1 = Math.min(blockX + blockW, x + out.width);
+		int j0 = Math.max(blockY, y), j1 = Math.min(blockY + rows, y + out.height);
+		boolean little = order == ByteOrder.LITTLE_ENDIAN;
+		for (int j = j0; j < j1; j++) {
+			int rowStart = (j - blockY) * rowBytes;
+			int outRow = (j - y) * out.width - x;
+			for (int s = 0; s < samplesPerPixel; s++) {
+				int[] dst = out.planes[planar ? plane : s];
+				for (int i = i0; i < i1; i++) {
+					int pos = rowStart + ((i - blockX) * samplesPerPixel + s) * bytesPerSample;
+					int v;
+					if (bytesPerSample == 1) {
+						v = signed ? raw[pos] : raw[pos] & 0xff;
+					}
+					else {
+						int lo = little ? raw[pos] & 0xff : raw[pos + 1] & 0xff;
+						int hi = little ? raw[pos + 1] : raw[pos];
+						v = signed ? (hi << 8) | lo : ((hi & 0xff) << 8) | lo;
+					}
+					dst[outRow + i] = v;
+				}
+			}
+		}
+	}
+
+	private void decompress(byte[] in, int inLen, byte[] out, int outLen) throws Exception {
+		if (compression == NONE) {
+			System.arraycopy(in, 0, out, 0, Math.min(inLen, outLen));
+		}
+		else if (compression == LZW) {
+			lzwDecode(in, inLen, out, outLen);
+		}
+		else {
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(in, 0, inLen);
+				int n = 0;
+				while (n < outLen && !inflater.finished()) {
+					int k = inflater.inflate(out, n, outLen - n);
+					if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+					n += k;
+				}
+			}
+			finally {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * TIFF flavour of LZW: codes are written most significant bit first, code length grows
+	 * from 9 to 12 bits one code earlier than in plain LZW. Each table entry is a section of
+	 * the already decoded output, a new entry is the previous one plus the next byte.
+	 */
+	private static void lzwDecode(byte[] in, int inLen, byte[] out, int outLen) {
+		int[] offsets = new int[4096];
+		int[] lengths = new int[4096];
+		int next = 258;
+		int codeLen = 9;
+		int bitPos = 0;
+		int n = 0;
+		int prevStart = -1; // where the string of the previous code starts in the output
+		int prevLen = 0;
+		while (n < outLen) {
+			if (bitPos + codeLen > inLen * 8) break;
+			int code = 0;
+			for (int k = 0; k < codeLen; k++) {
+				int b = (in[(bitPos + k) >> 3] >> (7 - ((bitPos + k) & 7))) & 1;
+				code = (code << 1) | b;
+			}
+			bitPos += codeLen;
+			if (code == 257) break; // end of information
+			if (code == 256) { // clear
+				next = 258;
+				codeLen = 9;
+				prevStart = -1;
+				continue;
+			}
+			int start = n;
+			int len;
+			if (code < 256) {
+				out[n++] = (byte) code;
+				len = 1;
+			}
+			else if (code < next) {
+				len = lengths[code];
+				System.arraycopy(out, offsets[code], out, n, Math.min(len, outLen - n));
+				n += Math.min(len, outLen - n);
+			}
+			else if (code == next && prevStart != -1) {
+				// the string is the previous one plus its own first byte
+				len = prevLen + 1;
+				System.arraycopy(out, prevStart, out, n, Math.min(prevLen, outLen - n));
+				n += Math.min(prevLen, outLen - n);
+				if (n < outLen) out[n++] = out[prevStart];
+			}
+			else {
+				break; // corrupt data
+			}
+			if (prevStart != -1 && next < 4096) {
+				offsets[next] = prevStart;
+				lengths[next] = prevLen + 1;
+				next++;
+				if (next + 1 >= (1 << codeLen) && codeLen < 12) codeLen++;
+			}
+			prevStart = start;
+			prevLen = len;
+		}
+	}
+
+	// Horizontal differencing: each sample is stored as the difference to the previous one in the row
+	private void undoPredictor(byte[] raw, int rows, int samplesPerPixel) {
+		boolean little = order == ByteOrder.LITTLE_ENDIAN;
+		int rowSamples = blockW * samplesPerPixel;
+		for (int r = 0; r < rows; r++) {
+			int base = r * rowSamples;
+			if (bytesPerSample == 1) {
+				for (int i = samplesPerPixel; i < rowSamples; i++) {
+					raw[base + i] += raw[base + i - samplesPerPixel];
+				}
+			}
+			else {
+				for (int i = samplesPerPixel; i < rowSamples; i++) {
+					int pos = (base + i) * 2;
+					int prevPos = (base + i - samplesPerPixel) * 2;
+					int v = get16(raw, pos, little) + get16(raw, prevPos, little);
+					if (little) {
+						raw[pos] = (byte) v;
+						raw[pos + 1] = (byte) (v >> 8);
+					}
+					else {
+						raw[pos] = (byte) (v >> 8);
+						raw[pos + 1] = (byte) v;
+					}
+				}
+			}
+		}
+	}
+
+	private static int get16(byte[] b, int pos, boolean little) {
+		if (little) return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8);
+		return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+	}
+
+	private ByteBuffer readBytes(long pos, int len, ByteOrder o) throws Exception {
+		byte[] b = new byte[len];
+		readFully(pos, b, len);
+		return ByteBuffer.wrap(b).order(o);
+	}
+
+	private void readFully(long pos, byte[] b, int len) throws Exception {
+		ByteBuffer buf = ByteBuffer.wrap(b, 0, len);
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos + buf.position());
+			if (n < 0) throw new Exception("Unexpected end of file");
+		}
+	}
+
+	/**
+	 * Decodes the given files with both this reader and ImageIO, checks that the results are
+	 * the same and prints the timings.
+	 *  -in <file or directory>  -repeat <n>
+	 */
+	public static void main(String[] args) throws Exception {
+		String in = null;
+		int repeat = 5;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-in")) in = args[i+1];
+			else if (args[i].equals("-repeat")) repeat = Integer.parseInt(args[i+1]);
+		}
+		if (in == null) {
+			System.out.println("-in not set");
+			System.exit(1);
+		}
+		File inFile = new File(in);
+		List<File> files = new Vector<>();
+		if (inFile.isDirectory()) {
+			for (File f: inFile.listFiles()) if (f.getName().endsWith(".tif")) files.add(f);
+		}
+		else {
+			files.add(inFile);
+		}
+
+		// the first call includes class loading and plugin registration, but not the telemetry setup
+		Telemetry.awaitSetup();
+		long t = System.nanoTime();
+		readBands(files.get(0));
+		double builtinFirst = (System.nanoTime() - t) / 1e6;
+		t = System.nanoTime();
+		readWithImageIO(files.get(0));
+		double imageioFirst = (System.nanoTime() - t) / 1e6;
+
+		double builtinTime = 0;
+		double imageioTime = 0;
+		int mismatches = 0;
+		for (int k = 0; k < repeat; k++) {
+			for (File f: files) {
+				t = System.nanoTime();
+				Bands a = readBands(f);
+				builtinTime += System.nanoTime() - t;
+				t = System.nanoTime();
+				Bands b = readWithImageIO(f);
+				imageioTime += System.nanoTime() - t;
+				if (k == 0 && !same(a, b)) {
+					System.out.println("Different result: " + f.getPath());
+					mismatches++;
+				}
+			}
+		}
+		int cnt = repeat * files.size();
+		System.out.println("Files           : " + files.size() + " (" + mismatches + " different)");
+		System.out.println("First read, ms  : built-in " + Utils.f(builtinFirst) + ", ImageIO " + Utils.f(imageioFirst));
+		System.out.println("Per file, ms    : built-in " + Utils.f(builtinTime / 1e6 / cnt) + ", ImageIO " + Utils.f(imageioTime / 1e6 / cnt));
+	}
+
+	private static boolean same(Bands a, Bands b) {
+		if (a.width != b.width || a.height != b.height || a.planes.length != b.planes.length) return false;
+		for (int i = 0; i < a.planes.length; i++) {
+			if (!java.util.Arrays.equals(a.planes[i], b.planes[i])) return false;
+		}
+		return true;
+	}
+}
@@ -16,6 +16,7 @@ package visualizer;
 import static visualizer.Utils.f;
 import static visualizer.Utils.f6;
 
+import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Container;
@@ -27,6 +28,7 @@ import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.RenderingHints;
+import java.awt.Shape;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
@@ -38,21 +40,56 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Area;
-import java.awt.geom.Line2D;
-import java.awt.geom.Path2D;
-import java.awt.geom.PathIterator;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
+import java.awt.image.DataBufferInt;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.LineNumberReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 import javax.imageio.ImageIO;
 import javax.swing.DefaultComboBoxModel;
@@ -61,8 +98,10 @@ import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 
 public class Visualizer implements ActionListener, ItemListener, MouseListener {
 	
@@ -72,15 +111,39 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 	private RunMode runMode = RunMode.TRUTH;
 	private boolean hasGui = true;
 	private String[] imageIds;
+	private int[] images; // numbers of the imageIds in the dictionary
 	private String currentImageId;
+	private int currentImage = -1;
 	private String image3Dir;
 	private String image8Dir;
+	private String imageIndexPath; // manifest of the image directories, in the temporary directory if null
+	private ImageIndex imageIndex;
 	private String truthPath;
 	private String solutionPath;
-	private Map<String, Polygon[]> idToTruthPolygons;
-	private Map<String, Polygon[]> idToSolutionPolygons;
-	private double iouThreshold = 0.5;
-	private static final double MIN_AREA = 20;
+	private List<String> solutionPaths = new Vector<>(); // all solutions if more than one is given
+	private boolean perImageComparison = false;
+	private boolean streaming = false;
+	private int streamQueueDepth = 64; // images waiting to be scored in streaming mode
+	private int shardIndex = 1; // 1-based
+	private int shardCount = 1;
+	private String partialOutPath;
+	private PrintWriter partialOut;
+	private ImageDictionary dictionary = new ImageDictionary(); // image numbers shared by the truth and the solutions
+	private PolygonTable truthTable;
+	private PolygonTable solutionTable;
+	private String solutionBPath; // the other solution of an A/B comparison, -solution is A
+	private PolygonTable solutionBTable;
+	private AbDiff[] abDiffs = new AbDiff[0]; // A/B differences by image number, accessed on the EDT only
+	private Scorer.Options scoringOptions = new Scorer.Options();
+	private Scorer scorer; // matching engine, shares nothing with the UI
+	private static final String DETAILS_MARKER = "Details:";
+	private static final int GRID_CELL = 32; // cell size of the hit testing grid, in pixels
+	
+	private final Deque<Integer> scoringQueue = new ArrayDeque<>(); // numbers of the images waiting to be scored in GUI mode
+	private Map<String, Metrics> idToMetrics = new HashMap<>(); // images already scored, accessed on the EDT only
+	private Metrics totalMetrics = new Metrics();
+	private volatile boolean scoringFinished = false;
+	private boolean watch = false;
 	
 	private double scale; // data size / screen size (for 3-band images)
 	private double x0 = 0, y0 = 0; // x0, y0: TopLeft corner of data is shown here (in screen space, applies to all views)
@@ -88,16 +151,27 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 	
 	private JFrame frame;
 	private JPanel viewPanel, controlsPanel;
-	private JCheckBox showTruthCb, showSolutionCb, showIouCb;
+	private JCheckBox showTruthCb, showSolutionCb, showIouCb, gridCb, abDiffCb;
 	private JComboBox<String> viewSelectorComboBox;
 	private JComboBox<String> imageSelectorComboBox;
 	private JTextArea logArea;
+	private JProgressBar progressBar;
 	private MapView mapView;
+	private JTextArea inspectorArea;
+	private Polygon selectedPolygon; // clicked polygon, shown in the inspector
+	private PolygonGrid[] grids = new PolygonGrid[0]; // hit testing grids by image number, accessed on the EDT only
 	private Font font = new Font("SansSerif", Font.BOLD, 14);
 	
 	private String bandTripletPath;
+	private String bandStatsPath;
+	private String statsScale = "image"; // how 8-band views are scaled: image, dataset or p99
+	private BandStats bandStats; // statistics of the 8-band images, null if there are none
 	private List<BandTriplet> bandTriplets;
 	private BandTriplet currentBandTriplet;
+	private String gridSpec; // 1-based view indexes of the grid mode given by -grid, e.g. 1,3,4
+	private List<BandTriplet> gridViews = new Vector<>(); // shown side by side in grid mode
+	private ExecutorService gridPool; // renders the panels of the grid mode
+	private BufferedImage[] panelImages = new BufferedImage[4]; // reused between frames, the first one by the single view too
 	
 	private Color textColor             = Color.black;
 	private Color tpBorderSolutionColor = new Color(255, 255, 255, 200);
@@ -108,69 +182,246 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 	private Color fpFillColor           = new Color(255, 255,   0, 100);
 	private Color fnBorderColor         = new Color(  0, 255, 255, 255);
 	private Color fnFillColor           = new Color(  0, 155, 255, 100);
+	private Color pendingBorderColor    = new Color(200, 200, 200, 200);
+	private Color solutionBBorderColor  = new Color(255, 128,   0, 255);
+	private Color selectedBorderColor   = new Color(255,   0, 255, 255);
+	private Color invalidColor          = new Color(150, 150, 200);
 	
 	private void run() {
-		idToSolutionPolygons = load(solutionPath, false);
-		idToTruthPolygons = load(truthPath, true);
-		
-		if (runMode == RunMode.SOLUTION) {
-			imageIds = idToSolutionPolygons.keySet().toArray(new String[0]);
-		}
-		else if (runMode == RunMode.TRUTH) {
-			imageIds = idToTruthPolygons.keySet().toArray(new String[0]);
-		}
-		else {
-			imageIds = collectImageIds();
-		}
+		solutionTable = load(solutionPath, false);
+		if (solutionBPath != null) solutionBTable = load(solutionBPath, false);
+		truthTable = load(truthPath, true);
+		images = selectImages(truthTable, solutionTable);
+		imageIds = dictionary.ids(images);
 		
-		Arrays.sort(imageIds);
 		if (hasGui) {
 			DefaultComboBoxModel<String> cbm = new DefaultComboBoxModel<>(imageIds);
 			imageSelectorComboBox.setModel(cbm);
 			imageSelectorComboBox.setSelectedIndex(0);
 			imageSelectorComboBox.addItemListener(this);
+			
+			// show the first image right away, scoring runs in the background
+			log(DETAILS_MARKER);
+			setCurrentImage(0);
+			loadMap();
+			scale = (double)currentBandTriplet.mapData.W / mapView.getWidth(); 
+			if (isGridMode()) scale *= 2; // the panels are half as wide
+			repaintMap();
+			startScoring();
+			return;
 		}
 		
+		// command line mode, score everything in order
+		idToMetrics.clear();
 		int tp = 0;
 		int fp = 0;
 		int fn = 0;
-		String detailsMarker = "Details:";
-		log(detailsMarker);
-		for (String id: imageIds) {
-			Metrics result = score(id);
+		log(DETAILS_MARKER);
+		// rasterising is independent of the matching, it runs on the other processors meanwhile
+		ExecutorService pixelPool = null;
+		List<Future<PixelIou>> pixelFutures = null;
+		PixelIou pixelTotal = new PixelIou();
+		int pixelAhead = 0;
+		if (scoringOptions.pixelIou) {
+			pixelAhead = 2 * Runtime.getRuntime().availableProcessors();
+			pixelPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			pixelFutures = new Vector<>();
+		}
+		for (int i = 0; i < images.length; i++) {
+			// rasterising runs a few images ahead, the tasks get the polygons since looking them up
+			// later would create the forgotten images of a compiled truth again
+			while (pixelFutures != null && pixelFutures.size() < Math.min(images.length, i + pixelAhead)) {
+				int image = images[pixelFutures.size()];
+				pixelFutures.add(PixelIou.submit(pixelPool, truthTable.get(image), solutionTable.get(image)));
+			}
+			String id = imageIds[i];
+			Metrics result = score(images[i]);
+			idToMetrics.put(id, result);
+			if (pixelFutures != null) {
+				PixelIou pixel = getPixelIou(pixelFutures.get(i));
+				if (pixel != null && result != null) pixelTotal.add(pixel);
+				log(detailsText(id, result, pixel));
+			}
+			else {
+				logDetails(id, result);
+			}
+			writePartial(id, result);
+			truthTable.forget(images[i]); // of a compiled truth only the images being scored are in memory
 			if (result != null) {
 				tp += result.tp;
 				fp += result.fp;
 				fn += result.fn;
-				log(id + "\n"
-					+ "  TP       : " + result.tp + "\n"
-					+ "  FP       : " + result.fp + "\n"
-					+ "  FN       : " + result.fn + "\n");
 			}
-			else {
-				log(id + "\n  - not scored");
+		}
+		logOverall(tp, fp, fn);
+		if (pixelPool != null) {
+			pixelPool.shutdown();
+			log("  Pixel IOU: " + f6(pixelTotal.iou()) + " (" + pixelTotal + ")");
+		}
+		closePartialOut();
+		if (scoringOptions.fastIou) {
+			log("IOU estimates: " + scorer.estimatedIouCount() + ", exact intersections: " + scorer.exactIntersectionCount());
+		}
+	}
+	
+	private PixelIou getPixelIou(Future<PixelIou> f) {
+		try {
+			return f.get();
+		}
+		catch (Exception e) {
+			log("Error calculating pixel IOU: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	// Numbers of the images to work with in the solution's dictionary, depends on the run mode, in image id order
+	private int[] selectImages(PolygonTable truth, PolygonTable solution) {
+		String[] ret;
+		if (runMode == RunMode.SOLUTION) {
+			ret = solution.ids();
+		}
+		else if (runMode == RunMode.TRUTH) {
+			ret = truth.ids();
+		}
+		else {
+			ret = collectImageIds();
+		}
+		if (shardCount > 1) {
+			List<String> ids = new Vector<>();
+			for (String id: ret) {
+				if (inShard(id)) ids.add(id);
 			}
+			ret = ids.toArray(new String[0]);
 		}
-		
-		double precision = 0;
-		double recall = 0;
-		double fScore = 0;
+		Arrays.sort(ret);
+		int[] numbers = new int[ret.length];
+		for (int i = 0; i < ret.length; i++) numbers[i] = solution.dictionary.add(ret[i]);
+		return numbers;
+	}
+	
+	// In truth run mode images that are not in the truth are not scored, they aren't read either
+	private Set<String> scoredIds() {
+		return runMode == RunMode.TRUTH ? new HashSet<>(Arrays.asList(truthTable.ids())) : null;
+	}
+	
+	// Images are assigned to shards by a hash of their id that doesn't depend on the JVM or platform
+	private boolean inShard(String id) {
+		if (shardCount <= 1) return true;
+		CRC32 crc = new CRC32();
+		crc.update(id.getBytes(StandardCharsets.UTF_8));
+		return crc.getValue() % shardCount == shardIndex - 1;
+	}
+	
+	private void openPartialOut() throws Exception {
+		if (partialOutPath == null) return;
+		partialOut = new PrintWriter(new OutputStreamWriter(new FileOutputStream(partialOutPath), "UTF-8"));
+		partialOut.println("# shard " + shardIndex + "/" + shardCount);
+		partialOut.println("ImageId,TP,FP,FN");
+	}
+	
+	// Images that can't be scored are not written, they don't count in the totals either
+	private synchronized void writePartial(String id, Metrics result) {
+		if (partialOut == null || result == null) return;
+		partialOut.println(id + "," + result.tp + "," + result.fp + "," + result.fn);
+	}
+	
+	private void closePartialOut() {
+		if (partialOut == null) return;
+		partialOut.close();
+		log("Partial results written to " + partialOutPath);
+	}
+	
+	/**
+	 * Sums the per-image results of several -partial-out files, e.g. from different shards, 
+	 * and prints the overall results.
+	 */
+	private void mergePartials(List<String> paths) throws Exception {
+		Set<String> ids = new HashSet<>();
+		Set<String> shards = new TreeSet<>();
+		int shardTotal = 0;
+		Metrics total = new Metrics();
+		for (String path: paths) {
+			log(" - Reading partial results from " + path + " ...");
+			LineNumberReader lnr = new LineNumberReader(new FileReader(path));
+			try {
+				while (true) {
+					String line = lnr.readLine();
+					if (line == null) break;
+					line = line.trim();
+					if (line.startsWith("# shard ")) {
+						String shard = line.substring("# shard ".length());
+						shardTotal = Integer.parseInt(shard.substring(shard.indexOf("/") + 1));
+						if (!shards.add(shard)) log("Warning: shard " + shard + " is merged more than once");
+						continue;
+					}
+					if (!Scorer.isDataLine(line)) continue;
+					String[] parts = line.split(",");
+					if (!ids.add(parts[0])) {
+						exit("Image " + parts[0] + " is present in more than one partial result, in " + path);
+					}
+					total.tp += Integer.parseInt(parts[1]);
+					total.fp += Integer.parseInt(parts[2]);
+					total.fn += Integer.parseInt(parts[3]);
+				}
+			}
+			finally {
+				lnr.close();
+			}
+		}
+		if (shardTotal > 1 && shards.size() < shardTotal) {
+			log("Warning: only " + shards.size() + " of " + shardTotal + " shards merged");
+		}
+		logOverall(total.tp, total.fp, total.fn);
+	}
+	
+	private void logDetails(String id, Metrics result) {
+		log(detailsText(id, result));
+	}
+	
+	private String detailsText(String id, Metrics result, PixelIou pixelIou) {
+		String text = detailsText(id, result);
+		if (result == null || pixelIou == null) return text;
+		return text + "  Pixel IOU: " + f6(pixelIou.iou()) + " (" + pixelIou + ")\n";
+	}
+	
+	private String detailsText(String id, Metrics result) {
+		if (result != null) {
+			return id + "\n"
+				+ "  TP       : " + result.tp + "\n"
+				+ "  FP       : " + result.fp + "\n"
+				+ "  FN       : " + result.fn + "\n";
+		}
+		else {
+			return id + "\n  - not scored";
+		}
+	}
+	
+	// Returns null if there is nothing to score
+	private String overallText(int tp, int fp, int fn) {
 		if ((tp + fp > 0) && (tp + fn > 0)) {
-			precision = (double)tp / (tp + fp);
-			recall = (double)tp / (tp + fn);
+			double precision = (double)tp / (tp + fp);
+			double recall = (double)tp / (tp + fn);
+			double fScore = 0;
 			if (precision + recall > 0) {
 				fScore = 2 * precision * recall / (precision + recall);
 			}
-			String result = "Overall results:\n"
+			return "Overall results:\n"
 					+ "  TP       : " + tp + "\n"
 					+ "  FP       : " + fp + "\n"
 					+ "  FN       : " + fn + "\n"
 					+ "  Precision: " + f6(precision) + "\n"
 					+ "  Recall   : " + f6(recall) + "\n"
 					+ "  F-score  : " + f6(fScore);
+		}
+		return null;
+	}
+	
+	private void logOverall(int tp, int fp, int fn) {
+		String result = overallText(tp, fp, fn);
+		if (result != null) {
 			if (hasGui) { // display final result at the top
 				String allText = logArea.getText();
-				int pos = allText.indexOf(detailsMarker);
+				int pos = allText.indexOf(DETAILS_MARKER);
 				String s1 = allText.substring(0, pos);
 				String s2 = allText.substring(pos);
 				allText = s1 + result + "\n\n" + s2;
@@ -186,448 +437,954 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		else {
 			log("Can't score.");
 		}
-		
-		// the rest is for UI, not needed for scoring
-		if (!hasGui) return;
-		
-		currentImageId = imageIds[0];
-		loadMap();
-		scale = (double)currentBandTriplet.mapData.W / mapView.getWidth(); 
-		repaintMap();
+	}
+	
+	/**
+	 * Scores all images on background threads. Results are published to the UI as each
+	 * image finishes, the image the user looks at is moved to the front of the queue.
+	 */
+	private void startScoring() {
+		synchronized (scoringQueue) {
+			for (int image: images) scoringQueue.add(image);
+		}
+		progressBar.setMaximum(imageIds.length);
+		progressBar.setValue(0);
+		updateProgress();
+		int threadCnt = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		for (int i = 0; i < threadCnt; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						final Integer image;
+						synchronized (scoringQueue) {
+							image = scoringQueue.pollFirst();
+						}
+						if (image == null) break;
+						final String id = dictionary.id(image);
+						final AbDiff diff = solutionBTable == null ? null : AbDiff.of(scorer, truthTable.get(image), 
+								solutionTable.get(image), solutionBTable.get(image), true, new IouCache());
+						final Metrics result = diff != null ? diff.a : score(image);
+						SwingUtilities.invokeLater(new Runnable() {
+							@Override
+							public void run() {
+								if (diff != null) {
+									if (image >= abDiffs.length) abDiffs = Arrays.copyOf(abDiffs, dictionary.size());
+									abDiffs[image] = diff;
+								}
+								scoringDone(id, result);
+							}
+						});
+					}
+				}
+			}, "scorer-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+	
+	// Moves the given image to the front of the scoring queue if it is not scored yet
+	private void prioritizeScoring(int image) {
+		synchronized (scoringQueue) {
+			if (scoringQueue.remove(image)) scoringQueue.addFirst(image);
+		}
+	}
+	
+	// Called on the event dispatch thread when an image is scored
+	private void scoringDone(String id, Metrics result) {
+		idToMetrics.put(id, result);
+		if (result != null) {
+			totalMetrics.tp += result.tp;
+			totalMetrics.fp += result.fp;
+			totalMetrics.fn += result.fn;
+		}
+		logDetails(id, result);
+		progressBar.setValue(idToMetrics.size());
+		updateProgress();
+		if (id.equals(currentImageId)) repaintMap();
+		if (idToMetrics.size() == imageIds.length) {
+			logOverall(totalMetrics.tp, totalMetrics.fp, totalMetrics.fn);
+			if (solutionBTable != null) {
+				AbDiff[] diffs = new AbDiff[images.length];
+				for (int i = 0; i < images.length; i++) diffs[i] = abDiffs[images[i]];
+				log(abReport(diffs));
+			}
+			scoringFinished = true;
+		}
+	}
+	
+	private void updateProgress() {
+		int tp = totalMetrics.tp;
+		int fp = totalMetrics.fp;
+		int fn = totalMetrics.fn;
+		double precision = tp + fp > 0 ? (double)tp / (tp + fp) : 0;
+		double recall = tp + fn > 0 ? (double)tp / (tp + fn) : 0;
+		double fScore = precision + recall > 0 ? 2 * precision * recall / (precision + recall) : 0;
+		progressBar.setString(idToMetrics.size() + "/" + imageIds.length 
+				+ "  TP:" + tp + " FP:" + fp + " FN:" + fn + "  F:" + f(fScore));
+	}
+	
+	private void setCurrentImage(int i) {
+		currentImageId = imageIds[i];
+		currentImage = images[i];
+	}
+	
+	private boolean isScored(String id) {
+		if (hasGui) return idToMetrics.containsKey(id);
+		return true;
 	}
 
-	private Metrics score(String id) {
+	private Metrics score(int image) {
+		return score(truthTable.get(image), solutionTable.get(image), true);
+	}
+	
+	private Metrics score(Polygon[] truthPolygons, Polygon[] solutionPolygons, boolean markTruth) {
+		return scorer.score(truthPolygons, solutionPolygons, markTruth);
+	}
+	
+	/**
+	 * Scores a solution against the already loaded truth and returns the report in the same 
+	 * format as the command line mode prints it. Doesn't change the truth so can be called 
+	 * concurrently. The solution's image ids are numbered in a copy of the dictionary, so
+	 * requests don't grow the dictionary of the run.
+	 */
+	String scoreSolution(Reader in) throws Exception {
+		PolygonTable solution = readPolygons(new LineNumberReader(in), false, scoredIds(), dictionary.copy());
+		Map<String, Metrics> idToResult = scoreAgainstTruth(solution);
+		StringBuilder sb = new StringBuilder();
+		sb.append(DETAILS_MARKER).append("\n");
+		for (String id: idToResult.keySet()) {
+			sb.append(detailsText(id, idToResult.get(id))).append("\n");
+		}
+		Metrics total = sum(idToResult);
+		String overall = overallText(total.tp, total.fp, total.fn);
+		sb.append(overall != null ? overall : "Can't score.").append("\n");
+		return sb.toString();
+	}
+	
+	// Per image results in image id order, null for images that can't be scored. Doesn't change the truth.
+	private Map<String, Metrics> scoreAgainstTruth(PolygonTable solution) {
+		Map<String, Metrics> ret = new LinkedHashMap<>();
+		for (int image: selectImages(truthTable, solution)) {
+			ret.put(solution.dictionary.id(image), score(truthTable.get(image), solution.get(image), false));
+		}
+		return ret;
+	}
+	
+	private Metrics sum(Map<String, Metrics> idToResult) {
 		Metrics ret = new Metrics();
-		Polygon[] truthPolygons = idToTruthPolygons.get(id);
-		Polygon[] solutionPolygons = idToSolutionPolygons.get(id);
-		if (truthPolygons == null || solutionPolygons == null) return null;
-		if (truthPolygons.length == 0 && solutionPolygons.length == 0) {
-			return ret;
+		for (Metrics m: idToResult.values()) {
+			if (m == null) continue;
+			ret.tp += m.tp;
+			ret.fp += m.fp;
+			ret.fn += m.fn;
 		}
-		int tp = 0;
-		int fp = 0;
-		int fn = 0;
-		for (Polygon sP: solutionPolygons) {
-			Polygon bestMatchingT = null;
-			double maxScore = 0;
-			for (Polygon tP: truthPolygons) {
-				if (tP.match == Match.TP) continue; // matched already
-				if (sP.minx > tP.maxx || sP.maxx < tP.minx) continue;
-				if (sP.miny > tP.maxy || sP.maxy < tP.miny) continue;
-				Area shape = new Area(sP.getShape());
-				shape.intersect(tP.getShape());
-				double overlap = Math.abs(area(shape));
-				double score = overlap / (sP.area + tP.area - overlap);
-				if (score > maxScore) {
-					maxScore = score;
-					bestMatchingT = tP;
+		return ret;
+	}
+	
+	/**
+	 * Scores several solutions against the same truth, one solution per thread, and prints
+	 * a comparison table.
+	 */
+	private void runComparison() throws Exception {
+		loadTruth();
+		final Set<String> scoredIds = scoredIds();
+		final int n = solutionPaths.size();
+		final List<Map<String, Metrics>> results = new Vector<>();
+		for (int i = 0; i < n; i++) results.add(null);
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(n, Runtime.getRuntime().availableProcessors()));
+		List<Future<?>> futures = new Vector<>();
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					String path = solutionPaths.get(index);
+					try {
+						PolygonTable solution = readPolygons(path, false, scoredIds);
+						results.set(index, scoreAgainstTruth(solution));
+						log(" - Scored " + path);
+					}
+					catch (Exception e) {
+						log("Error scoring " + path + ": " + e.getMessage());
+					}
 				}
-				
-			}
-			sP.iouScore = maxScore;
-			if (maxScore > iouThreshold) {
-				tp++;
-				sP.match = Match.TP;
-				bestMatchingT.match = Match.TP;
+			}));
+		}
+		for (Future<?> f: futures) f.get();
+		executor.shutdown();
+		
+		int nameW = 10;
+		for (String path: solutionPaths) nameW = Math.max(nameW, path.length());
+		String format = "%-" + nameW + "s %8s %8s %8s %10s %10s %10s";
+		log("");
+		log(String.format(format, "Solution", "TP", "FP", "FN", "Precision", "Recall", "F-score"));
+		for (int i = 0; i < n; i++) {
+			Map<String, Metrics> r = results.get(i);
+			if (r == null) {
+				log(String.format(format, solutionPaths.get(i), "-", "-", "-", "-", "-", "error"));
+				continue;
 			}
-			else {
-				fp++;
-				sP.match = Match.FP;
+			Metrics m = sum(r);
+			log(String.format(format, solutionPaths.get(i), m.tp, m.fp, m.fn, 
+					f6(m.precision()), f6(m.recall()), f6(m.fScore())));
+		}
+		
+		if (!perImageComparison) return;
+		// image ids are the same for all solutions except in SOLUTION run mode
+		Set<String> ids = new TreeSet<>();
+		for (Map<String, Metrics> r: results) {
+			if (r != null) ids.addAll(r.keySet());
+		}
+		int idW = 10;
+		for (String id: ids) idW = Math.max(idW, id.length());
+		StringBuilder header = new StringBuilder(String.format("%-" + idW + "s", "Image"));
+		for (int i = 0; i < n; i++) header.append(String.format(" %18s", "#" + (i+1) + " TP/FP/FN F"));
+		log("");
+		for (int i = 0; i < n; i++) log("#" + (i+1) + " : " + solutionPaths.get(i));
+		log(header.toString());
+		for (String id: ids) {
+			StringBuilder sb = new StringBuilder(String.format("%-" + idW + "s", id));
+			for (int i = 0; i < n; i++) {
+				Map<String, Metrics> r = results.get(i);
+				Metrics m = r == null ? null : r.get(id);
+				String cell = "-";
+				if (m != null) cell = m.tp + "/" + m.fp + "/" + m.fn + " " + f(m.fScore());
+				sb.append(String.format(" %18s", cell));
 			}
+			log(sb.toString());
 		}
-		for (Polygon tP: truthPolygons) {
-			if (tP.match == Match.NOTHING) {
-				fn++;
-				tP.match = Match.FN;
+	}
+	
+	/**
+	 * A/B comparison of two solutions of the same truth, -solution is A and -solution-b is B.
+	 * Images are scored by several threads, each scores both solutions of an image with one IOU
+	 * cache so the buildings the solutions share are intersected once. The cache is dropped when
+	 * the image is done, memory doesn't grow with the number of images.
+	 */
+	private void runAbDiff() throws Exception {
+		solutionTable = load(solutionPath, false);
+		solutionBTable = load(solutionBPath, false);
+		truthTable = load(truthPath, true);
+		images = selectImages(truthTable, solutionTable);
+		imageIds = dictionary.ids(images);
+		
+		final AbDiff[] diffs = new AbDiff[images.length];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicLong cachedPairs = new AtomicLong();
+		final AtomicLong reused = new AtomicLong();
+		int threadCnt = Runtime.getRuntime().availableProcessors();
+		Thread[] workers = new Thread[threadCnt];
+		for (int i = 0; i < threadCnt; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						int n = next.getAndIncrement();
+						if (n >= images.length) break;
+						int image = images[n];
+						IouCache cache = new IouCache();
+						diffs[n] = AbDiff.of(scorer, truthTable.get(image), solutionTable.get(image), 
+								solutionBTable.get(image), false, cache);
+						cachedPairs.addAndGet(cache.size());
+						reused.addAndGet(cache.hits());
+					}
+				}
+			}, "ab-scorer-" + i);
+			workers[i].start();
+		}
+		for (Thread t: workers) t.join();
+		log(abReport(diffs));
+		log("IOU cache: " + cachedPairs.get() + " pairs calculated, " + reused.get() + " reused");
+	}
+	
+	/**
+	 * Totals of both solutions of an A/B comparison and the images where they differ, sorted by
+	 * the change of the F-score from A to B so the images B is worse on come first. The diffs are 
+	 * in the order of imageIds, images that can't be scored with both solutions are left out.
+	 */
+	private String abReport(final AbDiff[] diffs) {
+		Metrics a = new Metrics();
+		Metrics b = new Metrics();
+		int tpAOnly = 0, tpBOnly = 0, fpAOnly = 0, fpBOnly = 0;
+		int scoredCnt = 0;
+		int idW = 10;
+		List<Integer> differing = new Vector<>();
+		for (int i = 0; i < diffs.length; i++) {
+			AbDiff d = diffs[i];
+			if (d == null || d.a == null || d.b == null) continue;
+			scoredCnt++;
+			a.add(d.a);
+			b.add(d.b);
+			tpAOnly += d.tpAOnly;
+			tpBOnly += d.tpBOnly;
+			fpAOnly += d.fpAOnly;
+			fpBOnly += d.fpBOnly;
+			if (d.differs()) {
+				differing.add(i);
+				idW = Math.max(idW, imageIds[i].length());
 			}
 		}
-		ret.tp = tp;
-		ret.fp = fp;
-		ret.fn = fn;
+		Collections.sort(differing, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				int c = Double.compare(diffs[i1].fDelta(), diffs[i2].fDelta());
+				return c != 0 ? c : imageIds[i1].compareTo(imageIds[i2]);
+			}
+		});
 		
-		return ret;
+		StringBuilder sb = new StringBuilder();
+		String format = "%-10s %8s %8s %8s %10s %10s %10s";
+		sb.append("\n").append(String.format(format, "Solution", "TP", "FP", "FN", "Precision", "Recall", "F-score"));
+		sb.append("\n").append(String.format(format, "A", a.tp, a.fp, a.fn, f6(a.precision()), f6(a.recall()), f6(a.fScore())));
+		sb.append("\n").append(String.format(format, "B", b.tp, b.fp, b.fn, f6(b.precision()), f6(b.recall()), f6(b.fScore())));
+		sb.append("\nA: ").append(solutionPath);
+		sb.append("\nB: ").append(solutionBPath);
+		sb.append("\nBuildings found by A only: " + tpAOnly + ", by B only: " + tpBOnly
+				+ ". False positives of A only: " + fpAOnly + ", of B only: " + fpBOnly + ".");
+		if (scoredCnt < diffs.length) {
+			sb.append("\n" + (diffs.length - scoredCnt) + " images can't be scored with both solutions and are left out.");
+		}
+		sb.append("\n\n" + differing.size() + " of " + scoredCnt + " images differ, sorted by F-score change (B - A):");
+		String rowFormat = "%-" + idW + "s %14s %7s %14s %7s %8s %10s %10s %10s %10s";
+		sb.append("\n").append(String.format(rowFormat, "Image", "A TP/FP/FN", "A F", "B TP/FP/FN", "B F", "Change",
+				"TP A only", "TP B only", "FP A only", "FP B only"));
+		for (int i: differing) {
+			AbDiff d = diffs[i];
+			double delta = d.fDelta();
+			sb.append("\n").append(String.format(rowFormat, imageIds[i], 
+					d.a.tp + "/" + d.a.fp + "/" + d.a.fn, f(d.a.fScore()), 
+					d.b.tp + "/" + d.b.fp + "/" + d.b.fn, f(d.b.fScore()), (delta >= 0 ? "+" : "") + f(delta),
+					d.tpAOnly, d.tpBOnly, d.fpAOnly, d.fpBOnly));
+		}
+		return sb.toString();
 	}
 	
-	// based on http://stackoverflow.com/questions/2263272/how-to-calculate-the-area-of-a-java-awt-geom-area
-	private double area(Area shape) {
-		PathIterator i = shape.getPathIterator(null);
-		double a = 0.0;
-        double[] coords = new double[6];
-        double startX = Double.NaN, startY = Double.NaN;
-        Line2D segment = new Line2D.Double(Double.NaN, Double.NaN, Double.NaN, Double.NaN);
-        while (! i.isDone()) {
-            int segType = i.currentSegment(coords);
-            double x = coords[0], y = coords[1];
-            switch (segType) {
-            case PathIterator.SEG_CLOSE:
-                segment.setLine(segment.getX2(), segment.getY2(), startX, startY);
-                a += area(segment);
-                startX = startY = Double.NaN;
-                segment.setLine(Double.NaN, Double.NaN, Double.NaN, Double.NaN);
-                break;
-            case PathIterator.SEG_LINETO:
-                segment.setLine(segment.getX2(), segment.getY2(), x, y);
-                a += area(segment);
-                break;
-            case PathIterator.SEG_MOVETO:
-                startX = x;
-                startY = y;
-                segment.setLine(Double.NaN, Double.NaN, x, y);
-                break;
-            }
-            i.next();
-        }
-        if (Double.isNaN(a)) {
-            throw new IllegalArgumentException("PathIterator contains an open path");
-        } 
-        else {
-            return 0.5 * Math.abs(a);
-        }
-    }
-
-    private double area(Line2D seg) {
-        return seg.getX1() * seg.getY2() - seg.getX2() * seg.getY1();
-    }
-    
-    private Map<String, Polygon[]> load(String path, boolean truth) {
-    	String what = truth ? "truth file" : "your solution";
-		log(" - Reading " + what + " from " + path + " ...");
-		if (path == null) {
-			log("     Path not set, nothing loaded.");
-			return new HashMap<>();
+	/**
+	 * Scores a solution file whose lines are grouped by image id without loading it into memory.
+	 * A reader thread parses one image at a time and hands it to the scoring threads through a
+	 * bounded queue. Results are printed in the order of the file as soon as the images before
+	 * them are done, so the output doesn't depend on the thread timing. The images are the ones
+	 * the normal mode scores, in truth run mode the truth images without solution lines are
+	 * listed at the end. If the truth is a compiled file then truth polygons are also created
+	 * one image at a time, so memory use depends on the queue depth only.
+	 */
+	private void runStreaming() throws Exception {
+		final CompiledTruth compiledTruth;
+		if (CompiledTruth.isCompiled(truthPath)) {
+			log(" - Opening compiled truth file " + truthPath + " ...");
+			compiledTruth = CompiledTruth.open(new File(truthPath));
 		}
+		else {
+			compiledTruth = null;
+			loadTruth();
+		}
+		log(" - Streaming your solution from " + solutionPath + " ...");
+		log(DETAILS_MARKER);
 		
-		Map<String, List<Polygon>> idToList = new HashMap<>();
+		final Object[] endMarker = new Object[0];
+		final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(streamQueueDepth);
+		final Metrics total = new Metrics();
+		// image id and result of the images finished before an earlier one, by index in the file
+		final Map<Integer, Object[]> finished = new HashMap<>();
+		final AtomicInteger nextToPrint = new AtomicInteger();
+		final AtomicReference<Exception> failure = new AtomicReference<>(); // of the first worker that failed
+		int threadCnt = Runtime.getRuntime().availableProcessors();
+		Thread[] workers = new Thread[threadCnt];
+		for (int i = 0; i < threadCnt; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					String id = null;
+					try {
+						while (true) {
+							Object[] item = queue.take(); // index, image id, solution polygons
+							if (item == endMarker) {
+								queue.put(endMarker); // for the other workers
+								break;
+							}
+							int position = (Integer) item[0];
+							id = (String) item[1];
+							Polygon[] truthPolygons;
+							if (compiledTruth != null) {
+								int index = compiledTruth.indexOf(id);
+								truthPolygons = index == -1 ? null : Scorer.compiledPolygons(compiledTruth, index);
+							}
+							else {
+								truthPolygons = truthTable.get(id);
+							}
+							Metrics result = score(truthPolygons, (Polygon[]) item[2], false);
+							synchronized (total) {
+								finished.put(position, new Object[] {id, result});
+								while (finished.containsKey(nextToPrint.get())) {
+									Object[] done = finished.remove(nextToPrint.getAndIncrement());
+									String printId = (String) done[0];
+									Metrics printResult = (Metrics) done[1];
+									writePartial(printId, printResult);
+									logDetails(printId, printResult);
+									if (printResult != null) {
+										total.tp += printResult.tp;
+										total.fp += printResult.fp;
+										total.fn += printResult.fn;
+									}
+								}
+							}
+						}
+					}
+					catch (InterruptedException e) {
+						// exit
+					}
+					catch (Throwable e) {
+						failure.compareAndSet(null, new Exception("Error scoring image " + id, e));
+					}
+				}
+			}, "scorer-" + i);
+			workers[i].start();
+		}
+		
+		Set<String> truthIds = compiledTruth == null ? scoredIds() : null;
+		Set<String> seenIds = new HashSet<>();
+		int imageCnt = 0;
+		String currentId = null;
+		List<Polygon> current = new Vector<>();
 		String line = null;
 		int lineNo = 0;
+		LineNumberReader lnr = new LineNumberReader(Scorer.openReader(new File(solutionPath)));
 		try {
-			LineNumberReader lnr = new LineNumberReader(new FileReader(path));
 			while (true) {
 				line = lnr.readLine();
 				lineNo++;
 				if (line == null) break;
 				line = line.trim();
-				if (line.isEmpty() || line.startsWith("#") || 
-						line.toLowerCase().startsWith("imageid")) continue;
-				// ImageId,BuildingId,PolygonWKT_Pix,PolygonWKT_Geo | confidence
-				// 013022223130_Public_img140,1,"POLYGON ((124 364 0,...,124 364 0))","POLYGON ((-43 -22 0,...,-43 -22 0))"
-				// - or
-				// 013022223130_Public_img140,1,"POLYGON ((124 364 0,...,124 364 0))",0.9
-				// - or
-				// imgid,-1,POLYGON EMPTY
-				// - or
-				// imgid,-1,anything
-				
-				int pos1 = line.indexOf(",");
-				String imageId = line.substring(0, pos1);
-				int pos2 = line.indexOf(",", pos1 + 1);
-				String buildingId = line.substring(pos1 + 1, pos2);
-				
-				List<Polygon> pList = idToList.get(imageId);
-				if (pList == null) {
-					pList = new Vector<>();
-					idToList.put(imageId, pList);
+				if (!Scorer.isDataLine(line)) continue;
+				String imageId = line.substring(0, line.indexOf(","));
+				if (!inShard(imageId)) continue;
+				// like in normal mode, in truth run mode images that are not in the truth are skipped
+				if (runMode == RunMode.TRUTH) {
+					if (compiledTruth != null ? compiledTruth.indexOf(imageId) == -1 : !truthIds.contains(imageId)) continue;
 				}
-				
-				boolean empty = line.contains("POLYGON EMPTY");
-				if (!empty && buildingId.equals("-1")) {
-					empty = true;
+				if (!imageId.equals(currentId)) {
+					if (currentId != null && !enqueue(queue, new Object[] {imageCnt++, currentId, sortedArray(current)}, failure)) break;
+					if (!seenIds.add(imageId)) {
+						throw new Exception("The solution is not grouped by image id, " + imageId + " appears again.");
+					}
+					currentId = imageId;
+					current = new Vector<>();
 				}
-				
-				if (!empty) {
-					pos1 = line.indexOf("((");
-					if (pos1 != -1) {
-						pos2 = line.indexOf("))", pos1);
-						String pString = line.substring(pos1, pos2+2);
-						Polygon p = new Polygon(pString);
-						if (p.area <= 0) {
-							if (!truth) {
-								log("Warning: building area <= 0");
-								log("Line #" + lineNo + ": " + line);
-							}
-							continue;
-						}
-						if (p.area < MIN_AREA) {
-							continue;
-						}
-						String confS = line.substring(pos2 + 4);
-						if (!truth) {
-							p.confidence = Double.parseDouble(confS);
+				Polygon p = Scorer.parsePolygon(line, lineNo, false, warnings);
+				if (p != null) current.add(p);
+			}
+			if (currentId != null) enqueue(queue, new Object[] {imageCnt++, currentId, sortedArray(current)}, failure);
+		}
+		catch (Exception e) {
+			log("Error reading building polygons");
+			log("Line #" + lineNo + ": " + line);
+			e.printStackTrace();
+			System.exit(0);
+		}
+		finally {
+			lnr.close();
+		}
+		if (!enqueue(queue, endMarker, failure)) {
+			for (Thread t: workers) t.interrupt(); // the others may wait for images that don't come
+		}
+		for (Thread t: workers) t.join();
+		if (failure.get() != null) {
+			log(failure.get().getMessage());
+			failure.get().getCause().printStackTrace();
+			System.exit(0);
+		}
+		
+		if (runMode == RunMode.TRUTH) {
+			// same as in normal mode, truth images without solution are listed but not scored
+			List<String> missing = new Vector<>();
+			if (compiledTruth != null) {
+				for (int i = 0; i < compiledTruth.imageCount(); i++) missing.add(compiledTruth.imageId(i));
+			}
+			else {
+				missing.addAll(Arrays.asList(truthTable.ids()));
+			}
+			missing.removeAll(seenIds);
+			for (Iterator<String> it = missing.iterator(); it.hasNext(); ) {
+				if (!inShard(it.next())) it.remove();
+			}
+			Collections.sort(missing);
+			for (String id: missing) logDetails(id, null);
+		}
+		logOverall(total.tp, total.fp, total.fn);
+		closePartialOut();
+	}
+	
+	// Puts an item on the queue of the scoring threads, false if one of them failed before it found room
+	private static boolean enqueue(BlockingQueue<Object[]> queue, Object[] item, AtomicReference<Exception> failure) throws InterruptedException {
+		while (failure.get() == null) {
+			if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) return true;
+		}
+		return false;
+	}
+	
+	private Polygon[] sortedArray(List<Polygon> pList) {
+		Polygon[] ret = pList.toArray(new Polygon[0]);
+		Arrays.sort(ret);
+		return ret;
+	}
+	
+	/**
+	 * Waits for changes of the solution file and rescores the images whose lines changed. 
+	 * In solution run mode images that appear in or disappear from the file are added to or
+	 * removed from the image list. The results are published on the event dispatch thread.
+	 * Doesn't return.
+	 */
+	private void watchSolution() throws Exception {
+		File file = new File(solutionPath).getAbsoluteFile();
+		Path dir = file.getParentFile().toPath();
+		Path name = file.toPath().getFileName();
+		WatchService ws = FileSystems.getDefault().newWatchService();
+		dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		Map<String, String> idToHash = hashSolutionLines();
+		log("Watching " + file.getPath() + " for changes.");
+		
+		while (true) {
+			WatchKey key = ws.take();
+			boolean changed = false;
+			for (WatchEvent<?> e: key.pollEvents()) {
+				if (name.equals(e.context())) changed = true;
+			}
+			key.reset();
+			if (!changed) continue;
+			// editors and scripts often write the file in several steps, wait until it settles
+			while (true) {
+				key = ws.poll(300, TimeUnit.MILLISECONDS);
+				if (key == null) break;
+				key.pollEvents();
+				key.reset();
+			}
+			while (hasGui && !scoringFinished) Thread.sleep(100);
+			
+			Map<String, String> newIdToHash;
+			try {
+				newIdToHash = hashSolutionLines();
+			}
+			catch (Exception e) {
+				log("Error reading " + solutionPath + ": " + e.getMessage());
+				continue;
+			}
+			final Set<String> changedIds = new TreeSet<>();
+			for (String id: newIdToHash.keySet()) {
+				if (!newIdToHash.get(id).equals(idToHash.get(id))) changedIds.add(id);
+			}
+			for (String id: idToHash.keySet()) {
+				if (!newIdToHash.containsKey(id)) changedIds.add(id);
+			}
+			idToHash = newIdToHash;
+			if (changedIds.isEmpty()) continue;
+			
+			final PolygonTable changedPolygons;
+			try {
+				changedPolygons = readPolygons(solutionPath, false, changedIds);
+			}
+			catch (Exception e) {
+				log("Error reading building polygons");
+				log(e.getMessage());
+				continue;
+			}
+			// the truth is marked on the event dispatch thread, it may be painted meanwhile
+			final Map<String, Metrics> changedMetrics = new HashMap<>();
+			for (String id: changedIds) {
+				changedMetrics.put(id, score(truthTable.get(id), changedPolygons.get(id), false));
+			}
+			
+			Runnable update = new Runnable() {
+				@Override
+				public void run() {
+					for (String id: changedIds) {
+						solutionTable.set(dictionary.add(id), changedPolygons.get(id));
+						Scorer.markTruth(truthTable.get(id), changedPolygons.get(id));
+					}
+					boolean listChanged = false;
+					if (runMode == RunMode.SOLUTION) {
+						int[] selected = selectImages(truthTable, solutionTable);
+						listChanged = !Arrays.equals(selected, images);
+						images = selected;
+						imageIds = dictionary.ids(images);
+					}
+					Set<String> listed = new HashSet<>(Arrays.asList(imageIds));
+					for (String id: changedIds) {
+						if (listed.contains(id)) idToMetrics.put(id, changedMetrics.get(id));
+						else idToMetrics.remove(id);
+					}
+					Metrics total = sum(idToMetrics);
+					if (hasGui) {
+						totalMetrics = total;
+						if (listChanged) updateImageSelector();
+						updateProgress();
+						refreshLog();
+						if (changedIds.contains(currentImageId)) repaintMap();
+					}
+					else {
+						log("Solution changed, rescored " + changedIds.size() + " images:");
+						for (String id: changedIds) {
+							if (idToMetrics.containsKey(id)) logDetails(id, changedMetrics.get(id));
 						}
-						
-						pList.add(p);
+						logOverall(total.tp, total.fp, total.fn);
 					}
 				}
+			};
+			if (hasGui) SwingUtilities.invokeLater(update);
+			else update.run();
+		}
+	}
+	
+	// Fills the image selector from imageIds after the list changed, keeps the current image if it is still listed
+	private void updateImageSelector() {
+		if (imageIds.length == 0) return; // nothing to show, the old list stays
+		int i = Math.max(0, Arrays.asList(imageIds).indexOf(currentImageId));
+		boolean sameImage = imageIds[i].equals(currentImageId);
+		imageSelectorComboBox.removeItemListener(this);
+		imageSelectorComboBox.setModel(new DefaultComboBoxModel<>(imageIds));
+		imageSelectorComboBox.setSelectedIndex(i);
+		imageSelectorComboBox.addItemListener(this);
+		setCurrentImage(i);
+		if (!sameImage) {
+			loadMap();
+			repaintMap();
+		}
+		progressBar.setMaximum(imageIds.length);
+		progressBar.setValue(idToMetrics.size());
+	}
+	
+	// Hash of the lines of each image in the solution file
+	private Map<String, String> hashSolutionLines() throws Exception {
+		Map<String, MessageDigest> idToDigest = new HashMap<>();
+		LineNumberReader lnr = new LineNumberReader(Scorer.openReader(new File(solutionPath)));
+		try {
+			while (true) {
+				String line = lnr.readLine();
+				if (line == null) break;
+				line = line.trim();
+				if (!Scorer.isDataLine(line)) continue;
+				String imageId = line.substring(0, line.indexOf(","));
+				MessageDigest md = idToDigest.get(imageId);
+				if (md == null) {
+					md = MessageDigest.getInstance("SHA-1");
+					idToDigest.put(imageId, md);
+				}
+				md.update(line.getBytes(StandardCharsets.UTF_8));
+				md.update((byte) '\n');
 			}
+		}
+		finally {
 			lnr.close();
+		}
+		Map<String, String> ret = new HashMap<>();
+		for (String id: idToDigest.keySet()) {
+			ret.put(id, new BigInteger(1, idToDigest.get(id).digest()).toString(16));
+		}
+		return ret;
+	}
+	
+	// Rebuilds the log window from the current results
+	private void refreshLog() {
+		StringBuilder sb = new StringBuilder();
+		String overall = overallText(totalMetrics.tp, totalMetrics.fp, totalMetrics.fn);
+		sb.append(overall != null ? overall : "Can't score.").append("\n\n");
+		sb.append(DETAILS_MARKER).append("\n");
+		for (String id: imageIds) {
+			sb.append(detailsText(id, idToMetrics.get(id))).append("\n");
+		}
+		logArea.setText(sb.toString());
+		logArea.setCaretPosition(0);
+		if (overall != null) System.out.println(overall);
+	}
+	
+	void loadTruth() {
+		truthTable = load(truthPath, true);
+	}
+	
+    private PolygonTable load(String path, boolean truth) {
+    	String what = truth ? "truth file" : path != null && path.equals(solutionBPath) ? "solution B" : "your solution";
+		log(" - Reading " + what + " from " + path + " ...");
+		if (path == null) {
+			log("     Path not set, nothing loaded.");
+			return new PolygonTable(dictionary);
+		}
+		
+		try {
+			if (truth && CompiledTruth.isCompiled(path)) {
+				return Scorer.readCompiled(CompiledTruth.open(new File(path)), dictionary);
+			}
+			return readPolygons(path, truth, null);
 		} 
 		catch (Exception e) {
 			log("Error reading building polygons");
-			log("Line #" + lineNo + ": " + line);
+			log(e.getMessage());
 			e.printStackTrace();
 			System.exit(0);
 		}
-		Map<String, Polygon[]> ret = new HashMap<>();
-		for (String id: idToList.keySet()) {
-			List<Polygon> pList = idToList.get(id);
-			Polygon[] pArr = pList.toArray(new Polygon[0]);
-			Arrays.sort(pArr);		
-			ret.put(id, pArr);
+		return null;
+	}
+	
+	/**
+	 * Writes the truth into a binary file that loads much faster than the CSV, see CompiledTruth.
+	 */
+	private void compileTruth(String outPath) throws Exception {
+		loadTruth();
+		String[] ids = truthTable.ids();
+		Arrays.sort(ids);
+		int polygonCnt = 0, ringCnt = 0, pointCnt = 0;
+		for (String id: ids) {
+			for (Polygon p: truthTable.get(id)) {
+				polygonCnt++;
+				for (Ring r: p.rings) {
+					ringCnt++;
+					pointCnt += r.points.length;
+				}
+			}
 		}
-		return ret;
+		int[] imagePolygonStart = new int[ids.length + 1];
+		int[] polygonRingStart = new int[polygonCnt + 1];
+		int[] ringPointStart = new int[ringCnt + 1];
+		double[] areas = new double[polygonCnt];
+		double[] bounds = new double[4 * polygonCnt];
+		double[] points = new double[2 * pointCnt];
+		int pI = 0, rI = 0, k = 0;
+		for (int i = 0; i < ids.length; i++) {
+			imagePolygonStart[i] = pI;
+			for (Polygon p: truthTable.get(ids[i])) {
+				polygonRingStart[pI] = rI;
+				areas[pI] = p.area;
+				bounds[4 * pI] = p.minx;
+				bounds[4 * pI + 1] = p.miny;
+				bounds[4 * pI + 2] = p.maxx;
+				bounds[4 * pI + 3] = p.maxy;
+				pI++;
+				for (Ring r: p.rings) {
+					ringPointStart[rI++] = k / 2;
+					for (P2 point: r.points) {
+						points[k++] = point.x;
+						points[k++] = point.y;
+					}
+				}
+			}
+		}
+		imagePolygonStart[ids.length] = pI;
+		polygonRingStart[polygonCnt] = rI;
+		ringPointStart[ringCnt] = k / 2;
+		CompiledTruth.write(new File(outPath), ids, imagePolygonStart, polygonRingStart, ringPointStart, 
+				areas, bounds, points);
+		log("Compiled truth written to " + outPath + ": " + ids.length + " images, " + polygonCnt + " polygons");
+	}
+	
+	/**
+	 * Parses polygon lines, the line number and content of a bad line is put into the exception message.
+	 * Reads only the given images if onlyIds is not null, and only those of the shard. Images
+	 * are numbered in the given dictionary.
+	 */
+	private PolygonTable readPolygons(LineNumberReader lnr, boolean truth, Set<String> onlyIds, ImageDictionary dictionary) throws Exception {
+		return Scorer.readTable(lnr, truth, imageFilter(onlyIds), dictionary, warnings);
+	}
+	
+	// Same for a file, large files are parsed in parallel and .gz files are inflated on the fly
+	private PolygonTable readPolygons(String path, boolean truth, Set<String> onlyIds) throws Exception {
+		return Scorer.readTable(new File(path), truth, imageFilter(onlyIds), dictionary, warnings, scoringOptions);
+	}
+	
+	private Scorer.ImageFilter imageFilter(final Set<String> onlyIds) {
+		return new Scorer.ImageFilter() {
+			@Override
+			public boolean accept(String imageId) {
+				return inShard(imageId) && (onlyIds == null || onlyIds.contains(imageId));
+			}
+		};
 	}
 	
 	private void loadMap() {
-		// load 3-band file
-		File f = new File(image3Dir, "3band_" + currentImageId + ".tif");
-		if (!f.exists()) {
+		selectedPolygon = null;
+		ImageSet images = readImages(currentImageId, true);
+		if (images.views[0] != null) bandTriplets.get(0).mapData = images.views[0];
+		if (images.has8band) {
+			for (int i = 1; i < bandTriplets.size(); i++) bandTriplets.get(i).mapData = images.views[i];
+			ratio38 = images.ratio38;
+		}
+		int views = 0;
+		long bytes = 0;
+		Set<byte[]> planes = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+		for (BandTriplet bt: bandTriplets) {
+			if (bt.mapData == null) continue;
+			views++;
+			for (byte[] plane: new byte[][] {bt.mapData.r, bt.mapData.g, bt.mapData.b}) {
+				if (planes.add(plane)) bytes += plane.length;
+			}
+		}
+		Telemetry.resources().setBandData(views, bytes);
+	}
+	
+	/**
+	 * Reads the 3-band image and optionally the 8-band image of an image id. The result has one
+	 * MapData per band triplet, null where the image could not be loaded.
+	 */
+	private ImageSet readImages(String imageId, boolean with8band) {
+		ImageSet ret = new ImageSet();
+		ret.views = new MapData[bandTriplets.size()];
+		// load 3-band file, the index saves a file system call per file on slow mounts
+		ImageIndex index = imageIndex();
+		File f = new File(image3Dir, "3band_" + imageId + ".tif");
+		if (!index.has3band(imageId) && !f.exists()) {
 			log("Can't find image file: " + f.getAbsolutePath());
-			return;
+			return ret;
 		}
 		int w3 = 0;
 		try {
-			BufferedImage img = ImageIO.read(f);
-			int w = img.getWidth();
+			TiffReader.Bands img = TiffReader.readBands(f);
+			int w = img.width;
 			w3 = w;
-			int h = img.getHeight();
-			MapData md = new MapData(w, h);
-			for (int i = 0; i < w; i++) for (int j = 0; j < h; j++) {
-				int c = img.getRGB(i, j);
-				md.rs[i][j] = (c >> 16) & 0x000000ff;
-				md.gs[i][j] = (c >>  8) & 0x000000ff;
-				md.bs[i][j] = (c >>  0) & 0x000000ff;
-			}
-			bandTriplets.get(0).mapData = md;
+			int h = img.height;
+			int[][] planes = img.planes;
+			int n = planes.length;
+			Telemetry.Span span = Telemetry.begin(Telemetry.Op.TRIPLET_COMPOSE);
+			byte[][] bytePlanes = new byte[Math.min(3, n)][];
+			if (img.bitsPerSample > 8) {
+				// 16 bit samples are scaled to the full range of the bit depth, like ImageIO's getRGB() did
+				int max = (1 << img.bitsPerSample) - 1;
+				for (int b = 0; b < bytePlanes.length; b++) bytePlanes[b] = scaleBand(planes[b], max);
+			}
+			else {
+				for (int b = 0; b < bytePlanes.length; b++) {
+					bytePlanes[b] = new byte[w * h];
+					for (int k = 0; k < w * h; k++) bytePlanes[b][k] = (byte) planes[b][k];
+				}
+			}
+			// a grey scale image has one plane, used for all three channels
+			MapData md = new MapData(w, h, bytePlanes[0], bytePlanes[Math.min(1, n - 1)], bytePlanes[Math.min(2, n - 1)]);
+			span.end(imageId, (long) w * h, 0);
+			ret.views[0] = md;
 		} 
 		catch (Exception e) {
 			log("Error reading image from " + f.getAbsolutePath());
 			e.printStackTrace();
 		}
+		if (!with8band) return ret;
 		
 		// load 8-band file into 8 arrays first
-		f = new File(image8Dir, "8band_" + currentImageId + ".tif");
-		if (!f.exists()) {
+		f = new File(image8Dir, "8band_" + imageId + ".tif");
+		if (!index.has8band(imageId) && !f.exists()) {
 			log("Can't find image file: " + f.getAbsolutePath());
-			return;
+			return ret;
 		}
 		try {
-			BufferedImage img = ImageIO.read(f);
-			Raster raster = img.getRaster();
-			int w = img.getWidth(); int h = img.getHeight();
-			ratio38 = (double)w3 / w;
-			double[][][] bandData = new double[8][w][h];
-			int max = 0;
-			for (int i = 0; i < w; i++) for (int j = 0; j < h; j++) {
-				int[] samples = raster.getPixel(i, j, new int[8]);
-				for (int b = 0; b < 8; b++) {
-					int v = samples[b];
-					max = Math.max(max, v);
-					bandData[b][i][j] = v;
+			TiffReader.Bands img = TiffReader.readBands(f);
+			int w = img.width; int h = img.height;
+			ret.ratio38 = (double)w3 / w;
+			int[][] bandData = img.planes;
+			int max = cachedScaleMax(f);
+			if (max == -1) {
+				max = 0;
+				for (int[] plane: bandData) {
+					for (int v: plane) max = Math.max(max, v);
 				}
 			}
-			if (max > 0) {
-				for (int b = 0; b < 8; b++) 
-					for (int i = 0; i < w; i++) 
-						for (int j = 0; j < h; j++)
-							bandData[b][i][j] /= max;
-			}
 			
-			// create all needed combinations
-			for (BandTriplet bt: bandTriplets) {
+			// create all needed combinations, each band is scaled once and shared by the triplets using it
+			byte[][] scaled = new byte[bandData.length][];
+			for (int tI = 0; tI < bandTriplets.size(); tI++) {
+				BandTriplet bt = bandTriplets.get(tI);
 				if (bt.is3band) continue;
-				MapData md = new MapData(w, h);
-				if (max > 0) {
-					for (int i = 0; i < w; i++) for (int j = 0; j < h; j++) {
-						int r = (int)(255 * bandData[bt.bands[0]-1][i][j]); 
-						int g = (int)(255 * bandData[bt.bands[1]-1][i][j]); 
-						int b = (int)(255 * bandData[bt.bands[2]-1][i][j]); 
-						md.rs[i][j] = r;
-						md.gs[i][j] = g;
-						md.bs[i][j] = b;
-					}
+				Telemetry.Span span = Telemetry.begin(Telemetry.Op.TRIPLET_COMPOSE);
+				byte[][] rgb = new byte[3][];
+				for (int c = 0; c < 3; c++) {
+					int band = bt.bands[c] - 1;
+					if (scaled[band] == null) scaled[band] = scaleBand(bandData[band], max);
+					rgb[c] = scaled[band];
 				}
-				bt.mapData = md;
+				span.end(imageId, (long) w * h, tI);
+				ret.views[tI] = new MapData(w, h, rgb[0], rgb[1], rgb[2]);
 			}
+			ret.has8band = true;
 		}
 		catch (Exception e) {
 			log("Error reading image from " + f.getAbsolutePath());
 			e.printStackTrace();
 		}
-	}
-	
-	private String[] collectImageIds() {
-		File dir = new File(image3Dir);
-		List<String> ids = new Vector<>();
-		for (String s: dir.list()) {
-			if (!s.endsWith(".tif")) continue;
-			s = s.replace(".tif", "");
-			s = s.replace("3band_", "");
-			ids.add(s);
-		}
-		String[] ret = ids.toArray(new String[0]);
-		Arrays.sort(ret);
 		return ret;
 	}
-
-	private class P2 {
-		public double x;
-		public double y;
-
-		public P2(double x, double y) {
-			this.x = x; this.y = y;
-		}
-		
-		@Override
-		public String toString() {
-			return f(x) + ", " + f(y);
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if (!(o instanceof P2)) return false;
-			P2 p = (P2)o;
-			double d2 = (x - p.x) * (x - p.x) + (y - p.y) * (y - p.y);
-			return d2 < 1e-4;
-		}
-	}
 	
-	private class Metrics {
-		public int tp;
-		public int fp;
-		public int fn;
+	// Band values scaled to 0..255, all zero if max is 0
+	private static byte[] scaleBand(int[] plane, int max) {
+		byte[] ret = new byte[plane.length];
+		if (max <= 0) return ret;
+		for (int k = 0; k < plane.length; k++) {
+			ret[k] = (byte) Math.min(255, (int)(255 * ((double)plane[k] / max)));
+		}
+		return ret;
 	}
 	
-	private class MapData {
-		public int W;
-		public int H;
-		public int[][] rs, gs, bs;
-		public MapData(int w, int h) {
-			W = w; H = h;
-			rs = new int[W][H];
-			gs = new int[W][H];
-			bs = new int[W][H];
+	// Value shown at full intensity in the 8-band views of an image if it is known from the band statistics, -1 otherwise
+	private int cachedScaleMax(File f) {
+		if (bandStats == null) return -1;
+		if (statsScale.equals("image")) {
+			BandStats.ImageStats s = bandStats.get(f);
+			return s == null ? -1 : s.max(null);
 		}
+		BandStats.ImageStats d = bandStats.dataset();
+		if (d.bandCount() == 0) return -1;
+		return statsScale.equals("dataset") ? d.max(null) : d.percentile(99, null);
 	}
 	
-	private enum Match {
-		NOTHING, TP, FP, FN
-	}
-
-	private class Polygon implements Comparable<Polygon> {
-		public double confidence;
-		public Match match = Match.NOTHING;
-		public double minx, miny, maxx, maxy;
-		public double iouScore;
-		public double area = 0;
-		private Area shape;
-		public List<Ring> rings = new Vector<>();
-				
-		public Polygon(String pString) {
-			// ((124 364 0,...,124 364 0),(124 364 0,...,124 364 0))
-			pString = pString.replace("),(", "x"); // ring separator
-			pString = pString.replace(")", ""); // remove ) and (
-			pString = pString.replace("(", "");
-			String[] parts = pString.split("x");
-			for (String p: parts) {
-				Ring r = new Ring(p);
-				rings.add(r);
-			}
-			makeBounds();
-			getShape();
-		}
-		
-		private void makeBounds() {
-			minx = Double.MAX_VALUE;
-			miny = Double.MAX_VALUE;
-			maxx = -Double.MAX_VALUE;
-			maxy = -Double.MAX_VALUE;
-			for (Ring r: rings) {
-				for (P2 p: r.points) {
-					minx = Math.min(p.x, minx);
-					maxx = Math.max(p.x, maxx);
-					miny = Math.min(p.y, miny);
-					maxy = Math.max(p.y, maxy);
-				}
+	private void loadBandStats() {
+		if (bandStatsPath != null) {
+			try {
+				bandStats = BandStats.load(new File(bandStatsPath));
 			}
-		}
-		
-		public Area getShape() {
-			if (shape == null) {
-				shape = new Area();
-				for (int rI = 0; rI < rings.size(); rI++) {
-					Ring r = rings.get(rI);
-					Path2D path = new Path2D.Double();
-					path.setWindingRule(Path2D.WIND_EVEN_ODD);
-		
-					int n = r.points.length;
-					path.moveTo(r.points[0].x, r.points[0].y);
-					for(int i = 1; i < n; ++i) {
-					   path.lineTo(r.points[i].x, r.points[i].y);
-					}
-					path.closePath();
-					Area ringArea = new Area(path);
-					double a = Math.abs(r.area());
-					if (rI == 0) { // first ring is positive
-						shape.add(ringArea);
-						area += a;
-					}
-					else {
-						shape.subtract(ringArea);
-						area -= a;
-					}
-				}
+			catch (Exception e) {
+				log("Error reading band statistics from " + bandStatsPath);
+				e.printStackTrace();
 			}
-			return shape;
 		}
-
-		@Override
-		public int compareTo(Polygon o) {
-			if (this.confidence > o.confidence) return -1;
-			if (this.confidence < o.confidence) return 1;
-			return 0;
+		else if (image8Dir != null) {
+			bandStats = BandStats.loadSidecar(new File(image8Dir));
 		}
-		
-		@Override
-		public String toString() {
-			return f(minx) + "," + f(miny) + " - " + 
-					f(maxx) + "," + f(maxy) + " " + match.toString();
+		if (bandStats == null && !statsScale.equals("image")) {
+			log("Band statistics not found, 8-band images are scaled by their own maximum.");
 		}
+		if (bandStats != null) Telemetry.resources().setBandStatsImages(bandStats.size());
 	}
 	
-	private class Ring {
-		public P2[] points;
-		
-		public Ring(String rs) {
-			String[] parts = rs.split(",");
-			int cnt = parts.length;
-			double[] xs = new double[cnt];
-			double[] ys = new double[cnt];
-			for (int i = 0; i < cnt; i++) {
-				String s = parts[i];
-				s = s.trim();
-				String[] coords = s.split(" ");
-				xs[i] = Double.parseDouble(coords[0]);
-				ys[i] = Double.parseDouble(coords[1]);
-			}
-			
-			int n = xs.length;
-			points = new P2[n];
-			for (int i = 0; i < n; i++) points[i] = new P2(xs[i], ys[i]);
-			if (n > 1 && !points[0].equals(points[n-1])) {
-				log("Warning: ring not closed: " + rs);
-			}
+	private String[] collectImageIds() {
+		return imageIndex().ids();
+	}
+	
+	// Index of the image directories, loaded on first use
+	private synchronized ImageIndex imageIndex() {
+		if (imageIndex == null) {
+			imageIndex = ImageIndex.load(new File(image3Dir), image8Dir == null ? null : new File(image8Dir), 
+					imageIndexPath == null ? null : new File(imageIndexPath));
 		}
+		return imageIndex;
+	}
 
-		public double area() {
-			// signed area calculated from the points
-			double a = 0;
-			for (int i = 1; i < points.length; i++) {
-				a += (points[i-1].x + points[i].x) * (points[i-1].y - points[i].y);
-			}
-			return a / 2;
-		}
+	// Images of one image id, one MapData per band triplet
+	private class ImageSet {
+		public MapData[] views;
+		public boolean has8band;
+		public double ratio38;
 	}
 	
+	/**
+	 * Colour channels of a view, r[x + y * W] is the red value of pixel (x, y). The views of an
+	 * image share the channel arrays of the bands they have in common, they must not be changed.
+	 */
+	private class MapData {
+		public int W;
+		public int H;
+		public byte[] r, g, b;
+		public MapData(int w, int h, byte[] r, byte[] g, byte[] b) {
+			W = w; H = h;
+			this.r = r;
+			this.g = g;
+			this.b = b;
+		}
+	}
 	
 	/**************************************************************************************************
 	 * 
@@ -639,6 +1396,7 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		if (!hasGui) return;
 		
 		loadBandTriplets();
+		loadBandStats();
 		
 		frame = new JFrame("Building Detector Visualizer");
 		int H = W * 2 / 3;
@@ -704,22 +1462,74 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		c2.gridy = 3;
 		controlsPanel.add(viewSelectorComboBox, c2);
 		
-		imageSelectorComboBox = new JComboBox<>(new String[] {"..."});
+		selectGridViews();
+		gridCb = new JCheckBox("Show " + gridViews.size() + " views side by side");
+		gridCb.setSelected(gridSpec != null);
+		gridCb.setEnabled(gridViews.size() >= 2);
+		gridCb.addActionListener(this);
 		c2.gridy = 4;
+		controlsPanel.add(gridCb, c2);
+		
+		if (solutionBPath != null) {
+			abDiffCb = new JCheckBox("Show only A/B differences");
+			abDiffCb.addActionListener(this);
+			c2.gridy = 5;
+			controlsPanel.add(abDiffCb, c2);
+		}
+		
+		imageSelectorComboBox = new JComboBox<>(new String[] {"..."});
+		c2.gridy = 6;
 		controlsPanel.add(imageSelectorComboBox, c2);
 		
+		progressBar = new JProgressBar();
+		progressBar.setStringPainted(true);
+		progressBar.setString("");
+		c2.gridy = 7;
+		controlsPanel.add(progressBar, c2);
+		
+		inspectorArea = new JTextArea("Click a polygon to inspect it.", 7, 20);
+		inspectorArea.setEditable(false);
+		inspectorArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+		c2.gridy = 8;
+		controlsPanel.add(new JScrollPane(inspectorArea), c2);
+		
 		JScrollPane sp = new JScrollPane();
 		logArea = new JTextArea("", 10, 20);
 		logArea.setFont(new Font("Monospaced", Font.PLAIN, 16));
 		logArea.addMouseListener(this);
 		sp.getViewport().setView(logArea);
-		c2.gridy = 5;
+		c2.gridy = 9;
 		c2.weighty = 10;
 		controlsPanel.add(sp, c2);
 		
 		frame.setVisible(true);
 	}
 	
+	// The views given by -grid, or the first four
+	private void selectGridViews() {
+		gridViews.clear();
+		if (gridSpec == null) {
+			for (int i = 0; i < Math.min(4, bandTriplets.size()); i++) gridViews.add(bandTriplets.get(i));
+			return;
+		}
+		for (String part: gridSpec.split(",")) {
+			int i = -1;
+			try {
+				i = Integer.parseInt(part.trim());
+			}
+			catch (NumberFormatException e) {
+				// reported below
+			}
+			if (i < 1 || i > bandTriplets.size()) exit("Invalid view in -grid, use 1.." + bandTriplets.size() + ": " + part);
+			gridViews.add(bandTriplets.get(i - 1));
+		}
+		if (gridViews.size() < 2 || gridViews.size() > 4) exit("-grid needs 2 to 4 views: " + gridSpec);
+	}
+	
+	private boolean isGridMode() {
+		return gridCb != null && gridCb.isSelected();
+	}
+	
 	private void loadBandTriplets() {
 		bandTriplets = new Vector<>();
 		BandTriplet b3 = new BandTriplet();
@@ -728,6 +1538,8 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		bandTriplets.add(b3);
 		currentBandTriplet = b3;
 		
+		if (bandTripletPath == null && !hasGui) return; // batch rendering needs the 3-band view only
+		
 		String line = null;
 		int lineNo = 0;
 		try {
@@ -770,6 +1582,363 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		}
 	}
 
+	// Differences of the current image if only those are shown, null otherwise
+	private AbDiff shownAbDiff() {
+		if (abDiffCb == null || !abDiffCb.isSelected()) return null;
+		return currentImage >= 0 && currentImage < abDiffs.length ? abDiffs[currentImage] : null;
+	}
+	
+	// The topmost visible polygon of the current image at a screen position of a view, or null
+	private Polygon polygonAt(int x, int y, BandTriplet view) {
+		if (currentImage < 0 || view == null || view.mapData == null) return null;
+		ViewTransform t = viewTransform(view);
+		double dataX = (x - t.x0) * t.scale * t.r;
+		double dataY = (y - t.y0) * t.scale * t.r;
+		return getGrid(currentImage).find(dataX, dataY, showTruthCb.isSelected(), showSolutionCb.isSelected());
+	}
+	
+	/**
+	 * Screen position and zoom of a view. Pan and zoom are those of the current view, the other
+	 * views of the grid mode show the same area.
+	 */
+	private ViewTransform viewTransform(BandTriplet view) {
+		ViewTransform t = new ViewTransform();
+		t.x0 = x0;
+		t.y0 = y0;
+		t.scale = scale;
+		if (currentBandTriplet.is3band && !view.is3band) t.scale /= ratio38;
+		if (!currentBandTriplet.is3band && view.is3band) t.scale *= ratio38;
+		t.r = view.is3band ? 1 : ratio38;
+		return t;
+	}
+	
+	// Hit testing grid of an image, rebuilt if its polygons have been replaced since it was built
+	private PolygonGrid getGrid(int image) {
+		Polygon[] truth = truthTable.get(image);
+		Polygon[] solution = solutionTable.get(image);
+		if (image >= grids.length) grids = Arrays.copyOf(grids, dictionary.size());
+		PolygonGrid grid = grids[image];
+		if (grid == null || grid.truth != truth || grid.solution != solution) {
+			// size of the shown image in polygon coordinates, 0 if there is none
+			MapData md = currentBandTriplet == null ? null : currentBandTriplet.mapData;
+			double r = currentBandTriplet == null || currentBandTriplet.is3band ? 1 : ratio38;
+			grid = new PolygonGrid(truth, solution, md == null ? 0 : md.W * r, md == null ? 0 : md.H * r);
+			grids[image] = grid;
+		}
+		return grid;
+	}
+	
+	// Text shown in the tooltip and in the inspector
+	private String describe(Polygon p, boolean html) {
+		boolean isTruth = getGrid(currentImage).truthSet.contains(p);
+		boolean scored = isScored(currentImageId);
+		List<String> lines = new Vector<>();
+		lines.add(isTruth ? "Truth polygon" : "Solution polygon");
+		if (!isTruth) lines.add("Confidence: " + f(p.confidence));
+		lines.add("Area: " + f(p.area));
+		lines.add("Bounds: " + f(p.minx) + "," + f(p.miny) + " - " + f(p.maxx) + "," + f(p.maxy));
+		if (!scored) {
+			lines.add("Match: not scored yet");
+		}
+		else {
+			lines.add("Match: " + p.match);
+			Polygon partner = p.partner;
+			double iou = isTruth ? (partner != null ? partner.iouScore : 0) : p.iouScore;
+			lines.add("IOU: " + f(iou));
+			if (partner != null) {
+				String what = isTruth ? "solution" : "truth";
+				lines.add("Matched " + what + ": area " + f(partner.area) + " at " + f(partner.minx) + "," + f(partner.miny));
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String line: lines) {
+			if (sb.length() > 0) sb.append(html ? "<br>" : "\n");
+			sb.append(line);
+		}
+		return html ? "<html>" + sb + "</html>" : sb.toString();
+	}
+	
+	/**
+	 * Uniform grid over the polygons of an image for hit testing. Each cell lists the polygons
+	 * whose bounding box overlaps it, so a lookup checks only a few polygons. The grid doesn't
+	 * reach beyond the image, parts of polygons outside of it are in the edge cells, so a stray
+	 * coordinate doesn't make it huge.
+	 */
+	private class PolygonGrid {
+		public Polygon[] truth; // the arrays the grid was built from
+		public Polygon[] solution;
+		private int cols, rows;
+		private List<List<Polygon>> cells; // null for empty cells
+		public Set<Polygon> truthSet = new HashSet<>();
+		
+		public PolygonGrid(Polygon[] truth, Polygon[] solution, double width, double height) {
+			this.truth = truth;
+			this.solution = solution;
+			List<Polygon> all = new Vector<>();
+			if (truth != null) {
+				all.addAll(Arrays.asList(truth));
+				truthSet.addAll(all);
+			}
+			if (solution != null) all.addAll(Arrays.asList(solution));
+			double maxx = 0, maxy = 0;
+			for (Polygon p: all) {
+				maxx = Math.max(maxx, p.maxx);
+				maxy = Math.max(maxy, p.maxy);
+			}
+			cols = (int)(Math.min(maxx, width) / GRID_CELL) + 1;
+			rows = (int)(Math.min(maxy, height) / GRID_CELL) + 1;
+			cells = new ArrayList<>(Collections.nCopies(cols * rows, (List<Polygon>) null));
+			for (Polygon p: all) {
+				int c0 = cell(p.minx, cols), c1 = cell(p.maxx, cols);
+				int r0 = cell(p.miny, rows), r1 = cell(p.maxy, rows);
+				for (int r = r0; r <= r1; r++) {
+					for (int c = c0; c <= c1; c++) {
+						int i = r * cols + c;
+						if (cells.get(i) == null) cells.set(i, new Vector<Polygon>());
+						cells.get(i).add(p);
+					}
+				}
+			}
+		}
+		
+		private int cell(double v, int n) {
+			return Math.max(0, Math.min(n - 1, (int)(v / GRID_CELL)));
+		}
+		
+		// Polygon containing the point, solution polygons are preferred as they are drawn on top, then smaller ones 
+		public Polygon find(double x, double y, boolean withTruth, boolean withSolution) {
+			int c = cell(x, cols);
+			int r = cell(y, rows);
+			if (cells.get(r * cols + c) == null) return null;
+			Polygon ret = null;
+			boolean retIsTruth = true;
+			for (Polygon p: cells.get(r * cols + c)) {
+				boolean isTruth = truthSet.contains(p);
+				if (isTruth ? !withTruth : !withSolution) continue;
+				if (x < p.minx || x > p.maxx || y < p.miny || y > p.maxy) continue;
+				if (!p.getShape().contains(x, y)) continue;
+				if (ret == null || (retIsTruth && !isTruth) || (retIsTruth == isTruth && p.area < ret.area)) {
+					ret = p;
+					retIsTruth = isTruth;
+				}
+			}
+			return ret;
+		}
+	}
+	
+	// Screen position and zoom of a view
+	private class ViewTransform {
+		public double x0, y0; // TopLeft corner of data is shown here
+		public double scale; // data size / screen size
+		public double r; // polygon coordinates / image coordinates, they differ for 8-band images
+	}
+	
+	/**
+	 * Draws an image and the polygon overlays into target, a W x H TYPE_INT_RGB image, g2 draws
+	 * on target. The image pixels are written straight into its buffer. Used both by the GUI and
+	 * by batch rendering, doesn't depend on the state of the UI. Returns the number of polygons
+	 * drawn.
+	 */
+	private int renderMap(BufferedImage target, Graphics2D g2, int W, int H, MapData mapData, ViewTransform t, 
+			Polygon[] truthPolygons, Polygon[] solutionPolygons, 
+			boolean showTruth, boolean showSolution, boolean showIou, boolean scored) {
+		g2.setFont(font);
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		int invalid = invalidColor.getRGB() & 0xffffff;
+		int[] out = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+		// map column of each screen column, -1 outside of the image
+		int[] mapIs = new int[W];
+		for (int i = 0; i < W; i++) {
+			int mapI = (int)((i - t.x0) * t.scale);
+			mapIs[i] = mapI >= 0 && mapI < mapData.W ? mapI : -1;
+		}
+		byte[] rs = mapData.r, gs = mapData.g, bs = mapData.b;
+		for (int j = 0; j < H; j++) {
+			int mapJ = (int)((j - t.y0) * t.scale);
+			int o = j * W;
+			if (mapJ < 0 || mapJ >= mapData.H) {
+				Arrays.fill(out, o, o + W, invalid);
+				continue;
+			}
+			int base = mapJ * mapData.W;
+			for (int i = 0; i < W; i++) {
+				int mapI = mapIs[i];
+				if (mapI == -1) {
+					out[o + i] = invalid;
+					continue;
+				}
+				int k = base + mapI;
+				out[o + i] = ((rs[k] & 0xff) << 16) | ((gs[k] & 0xff) << 8) | (bs[k] & 0xff);
+			}
+		}
+		
+		int drawn = 0;
+		// until the image is scored its polygons are drawn as outlines only
+		if (showTruth && truthPolygons != null) {
+			for (Polygon p: truthPolygons) {
+				Color border = p.match == Match.TP ? tpBorderTruthColor : fnBorderColor;
+				Color fill = p.match == Match.TP ? tpFillTruthColor : fnFillColor;
+				if (!scored) {
+					border = pendingBorderColor;
+					fill = null;
+				}
+				if (drawPoly(p, g2, W, H, t, border, fill, null)) drawn++;
+			}
+		}
+		if (showSolution && solutionPolygons != null) {
+			for (Polygon p: solutionPolygons) {
+				String label = null;
+				if (showIou && scored) {
+					label = f(p.iouScore);
+				}
+				Color border = p.match == Match.TP ? tpBorderSolutionColor : fpBorderColor;
+				Color fill = p.match == Match.TP ? tpFillSolutionColor : fpFillColor;
+				if (!scored) {
+					border = pendingBorderColor;
+					fill = null;
+				}
+				if (drawPoly(p, g2, W, H, t, border, fill, label)) drawn++;
+			}
+		}
+		return drawn;
+	}
+
+	// Returns false if the polygon is outside of the screen
+	private boolean drawPoly(Polygon p, Graphics2D g2, int W, int H, ViewTransform t, Color border, Color fill, String label) {
+		// polygon coordinates are in 3-band space so everything should be scaled if needed
+		double r = t.r;
+		double scale = t.scale;
+		double x0 = t.x0;
+		double y0 = t.y0;
+		
+		double minx = p.minx / r / scale + x0;
+		if (minx > W) return false;
+		double maxx = p.maxx / r / scale + x0;
+		if (maxx < 0) return false;
+		double miny = p.miny / r / scale + y0;
+		if (miny > H) return false;
+		double maxy = p.maxy / r / scale + y0;
+		if (maxy < 0) return false;
+		
+		// polygons smaller than a pixel are drawn as points
+		double pixel = r * scale; // size of a screen pixel in polygon space
+		if (p.maxx - p.minx < pixel && p.maxy - p.miny < pixel) {
+			g2.setColor(border);
+			g2.fillRect((int)minx, (int)miny, 1, 1);
+			return true;
+		}
+		
+		AffineTransform at = new AffineTransform();
+		at.translate(x0, y0);
+		at.scale(1 / (r * scale), 1 / (r * scale));
+		int level = lodLevel(pixel);
+		Shape a = level < 0 ? p.getShape().createTransformedArea(at) : at.createTransformedShape(p.getLodPath(level));
+		
+		g2.setColor(border);
+		g2.draw(a);
+		if (fill != null) {
+			g2.setColor(fill);
+			g2.fill(a);
+		}
+		
+		if (label != null) {
+			int centerX = (int)((p.maxx / r + p.minx / r) / 2 / scale + x0);
+			int centerY = (int)((p.maxy / r + p.miny / r) / 2 / scale + y0);
+			int w = textWidth(label, g2);
+			int h = font.getSize();
+			g2.setColor(textColor);
+			g2.drawString(label, centerX - w/2, centerY + h/2);
+		}
+		return true;
+	}
+	
+	/**
+	 * Level of detail to use when a screen pixel is this large in polygon space, -1 means full
+	 * detail. Level L is simplified with a tolerance of 2^L, which is at most half a pixel.
+	 */
+	private int lodLevel(double pixel) {
+		double tolerance = pixel / 2;
+		if (tolerance < 1) return -1;
+		int level = (int)Math.floor(Math.log(tolerance) / Math.log(2));
+		return Math.min(level, Polygon.LOD_LEVELS - 1);
+	}
+	
+	private int textWidth(String text, Graphics2D g) {
+		FontRenderContext context = g.getFontRenderContext();
+		Rectangle2D r = font.getStringBounds(text, context);
+		return (int) r.getWidth();
+	}
+	
+	/**
+	 * Renders the 3-band image of every image with truth and solution overlays into PNG files, 
+	 * without GUI. Each worker thread scores, decodes, renders and encodes one image at a time 
+	 * so at most as many images are in memory as there are threads.
+	 */
+	private void renderAll(final String outDir) throws Exception {
+		solutionTable = load(solutionPath, false);
+		truthTable = load(truthPath, true);
+		images = selectImages(truthTable, solutionTable);
+		imageIds = dictionary.ids(images);
+		loadBandTriplets();
+		
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger rendered = new AtomicInteger();
+		final Metrics total = new Metrics();
+		long start = System.currentTimeMillis();
+		int threadCnt = Runtime.getRuntime().availableProcessors();
+		Thread[] workers = new Thread[threadCnt];
+		for (int i = 0; i < threadCnt; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						int n = next.getAndIncrement();
+						if (n >= imageIds.length) break;
+						String id = imageIds[n];
+						int image = images[n];
+						try {
+							Metrics result = score(image);
+							synchronized (total) {
+								if (result != null) {
+									total.tp += result.tp;
+									total.fp += result.fp;
+									total.fn += result.fn;
+								}
+							}
+							MapData md = readImages(id, false).views[0];
+							if (md == null) continue;
+							BufferedImage img = new BufferedImage(md.W, md.H, BufferedImage.TYPE_INT_RGB);
+							Graphics2D g2 = img.createGraphics();
+							ViewTransform t = new ViewTransform();
+							t.scale = 1;
+							t.r = 1;
+							renderMap(img, g2, md.W, md.H, md, t, truthTable.get(image), solutionTable.get(image), 
+									true, true, true, true);
+							g2.dispose();
+							ImageIO.write(img, "png", new File(outDir, id + ".png"));
+							rendered.incrementAndGet();
+						}
+						catch (Exception e) {
+							log("Error rendering " + id);
+							e.printStackTrace();
+						}
+						finally {
+							truthTable.forget(image); // like in the command line mode
+						}
+					}
+				}
+			}, "renderer-" + i);
+			workers[i].start();
+		}
+		for (Thread t: workers) t.join();
+		
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		log("Rendered " + rendered.get() + " of " + imageIds.length + " images to " + outDir + " in " 
+				+ f(seconds) + " s, " + f(rendered.get() / Math.max(seconds, 1e-3)) + " tiles/s");
+		logOverall(total.tp, total.fp, total.fn);
+	}
+	
 	private void repaintMap() {
 		if (mapView != null) mapView.repaint();
 	}
@@ -779,7 +1948,6 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		
 		private int mouseX;
 		private int mouseY;
-		private Color invalidColor = new Color(150, 150, 200);
 		
 		public MapView() {
 			super();
@@ -790,98 +1958,168 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 
 		@Override
 		public void paint(Graphics gr) {
-			if (currentBandTriplet == null || currentBandTriplet.mapData == null) return;
-			MapData mapData = currentBandTriplet.mapData;
-			
-			Graphics2D g2 = (Graphics2D) gr;
-			g2.setFont(font);
-			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-			g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-			int W = this.getWidth();
-			int H = this.getHeight();
-			for (int i = 0; i < W; i++) for (int j = 0; j < H; j++) {
-				Color c = invalidColor;
-				int mapI = (int)((i - x0) * scale);
-				int mapJ = (int)((j - y0) * scale);
-				
-				if (mapI >= 0 && mapJ >= 0 && mapI < mapData.W && mapJ < mapData.H) {
-					int r = mapData.rs[mapI][mapJ];
-					int g = mapData.gs[mapI][mapJ];
-					int b = mapData.bs[mapI][mapJ];
-					c = new Color(r, g, b);
-				}
-				g2.setColor(c);
-				g2.fillRect(i, j, 1, 1);
+			if (currentBandTriplet == null) return;
+			if (isGridMode()) {
+				paintGrid((Graphics2D) gr);
+				return;
 			}
-			
-			if (showTruthCb.isSelected()) {
-				Polygon[] truthPolygons = idToTruthPolygons.get(currentImageId);
-				if (truthPolygons != null) {
-					for (Polygon p: truthPolygons) {
-						Color border = p.match == Match.TP ? tpBorderTruthColor : fnBorderColor;
-						Color fill = p.match == Match.TP ? tpFillTruthColor : fnFillColor;
-						drawPoly(p, g2, border, fill, null);
+			if (currentBandTriplet.mapData == null) return;
+			Telemetry.Span span = Telemetry.begin(Telemetry.Op.PAINT);
+			BufferedImage img = panelImage(0, getWidth(), getHeight());
+			Graphics2D g2 = img.createGraphics();
+			int drawn;
+			try {
+				drawn = paintView(img, g2, getWidth(), getHeight(), currentBandTriplet, 
+						truthTable.get(currentImage), solutionTable.get(currentImage),
+						showTruthCb.isSelected(), showSolutionCb.isSelected(), showIouCb.isSelected(), 
+						isScored(currentImageId), selectedPolygon, shownAbDiff());
+			}
+			finally {
+				g2.dispose();
+			}
+			gr.drawImage(img, 0, 0, null);
+			span.end(currentImageId, (long) getWidth() * getHeight(), drawn);
+		}
+		
+		/**
+		 * Grid mode: the views are rendered into their own images on the grid pool at the same
+		 * time, then copied to the screen. UI state is read here on the EDT, not by the workers.
+		 */
+		private void paintGrid(Graphics2D g2) {
+			Telemetry.Span span = Telemetry.begin(Telemetry.Op.PAINT);
+			if (gridPool == null) {
+				gridPool = Executors.newFixedThreadPool(Math.min(4, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "grid-paint");
+						t.setDaemon(true);
+						return t;
 					}
-				}
+				});
 			}
-			if (showSolutionCb.isSelected()) {
-				Polygon[] solutionPolygons = idToSolutionPolygons.get(currentImageId);
-				if (solutionPolygons != null) {
-					for (Polygon p: solutionPolygons) {
-						String label = null;
-						if (showIouCb.isSelected()) {
-							label = f(p.iouScore);
+			final int pw = getWidth() / 2;
+			final int ph = getHeight() / ((gridViews.size() + 1) / 2);
+			final boolean showTruth = showTruthCb.isSelected();
+			final boolean showSolution = showSolutionCb.isSelected();
+			final boolean showIou = showIouCb.isSelected();
+			final boolean scored = isScored(currentImageId);
+			final Polygon selected = selectedPolygon;
+			final Polygon[] truth = truthTable.get(currentImage);
+			final Polygon[] solution = solutionTable.get(currentImage);
+			final AbDiff diff = shownAbDiff();
+			List<Future<Integer>> futures = new Vector<>();
+			for (int i = 0; i < gridViews.size(); i++) {
+				final BandTriplet view = gridViews.get(i);
+				final BufferedImage img = panelImage(i, pw, ph);
+				futures.add(gridPool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						Graphics2D pg = img.createGraphics();
+						try {
+							if (view.mapData == null) {
+								pg.setColor(invalidColor);
+								pg.fillRect(0, 0, pw, ph);
+								return 0;
+							}
+							return paintView(img, pg, pw, ph, view, truth, solution, showTruth, showSolution, showIou, scored, selected, diff);
+						}
+						finally {
+							pg.dispose();
 						}
-						Color border = p.match == Match.TP ? tpBorderSolutionColor : fpBorderColor;
-						Color fill = p.match == Match.TP ? tpFillSolutionColor : fpFillColor;
-						drawPoly(p, g2, border, fill, label);
 					}
+				}));
+			}
+			int drawn = 0;
+			for (int i = 0; i < gridViews.size(); i++) {
+				try {
+					drawn += futures.get(i).get();
 				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+				int px = (i % 2) * pw;
+				int py = (i / 2) * ph;
+				g2.drawImage(panelImages[i], px, py, null);
+				// view name in the top left corner
+				String name = gridViews.get(i).toString();
+				g2.setFont(font);
+				g2.setColor(invalidColor);
+				g2.fillRect(px, py, textWidth(name, g2) + 8, font.getSize() + 6);
+				g2.setColor(textColor);
+				g2.drawString(name, px + 4, py + font.getSize() + 2);
 			}
+			g2.setColor(textColor);
+			g2.setStroke(new BasicStroke(1));
+			g2.drawLine(pw, 0, pw, getHeight());
+			if (gridViews.size() > 2) g2.drawLine(0, ph, getWidth(), ph);
+			span.end(currentImageId, (long) getWidth() * getHeight(), drawn);
 		}
-
-		private void drawPoly(Polygon p, Graphics2D g2, Color border, Color fill, String label) {
-			// polygon coordinates are in 3-band space so everything should be scaled if needed
-			double r = currentBandTriplet.is3band ? 1 : ratio38;
-			
-			double minx = p.minx / r / scale + x0;
-			if (minx > this.getWidth()) return;
-			double maxx = p.maxx / r / scale + x0;
-			if (maxx < 0) return;
-			double miny = p.miny / r / scale + y0;
-			if (miny > this.getHeight()) return;
-			double maxy = p.maxy / r / scale + y0;
-			if (maxy < 0) return;
-			
-			AffineTransform t = new AffineTransform();
-			t.translate(x0, y0);
-			t.scale(1 / (r * scale), 1 / (r * scale));
-			Area a = p.getShape().createTransformedArea(t);
-			
-			g2.setColor(border);
-			g2.draw(a);
-			g2.setColor(fill);
-			g2.fill(a);
-			
-			if (label != null) {
-				int centerX = (int)((p.maxx / r + p.minx / r) / 2 / scale + x0);
-				int centerY = (int)((p.maxy / r + p.miny / r) / 2 / scale + y0);
-				int w = textWidth(label, g2);
-				int h = font.getSize();
-				g2.setColor(textColor);
-				g2.drawString(label, centerX - w/2, centerY + h/2);
+		
+		/**
+		 * Renders a view with its overlays and the selection, returns the number of polygons drawn.
+		 * If an A/B diff is given only the polygons involved in a difference are drawn, those of
+		 * B as outlines labeled with their match.
+		 */
+		private int paintView(BufferedImage target, Graphics2D g2, int w, int h, BandTriplet view, Polygon[] truth, Polygon[] solution,
+				boolean showTruth, boolean showSolution, boolean showIou, boolean scored, Polygon selected, AbDiff diff) {
+			ViewTransform t = viewTransform(view);
+			if (diff != null) {
+				truth = diff.truth.toArray(new Polygon[0]);
+				solution = diff.aPolygons.toArray(new Polygon[0]);
+			}
+			int drawn = renderMap(target, g2, w, h, view.mapData, t, truth, solution, showTruth, showSolution, showIou, scored);
+			if (diff != null && showSolution) {
+				for (Polygon p: diff.bPolygons) {
+					String label = "B " + p.match + (showIou ? " " + f(p.iouScore) : "");
+					if (drawPoly(p, g2, w, h, t, solutionBBorderColor, null, label)) drawn++;
+				}
+			}
+			if (selected != null) {
+				g2.setStroke(new BasicStroke(3));
+				if (drawPoly(selected, g2, w, h, t, selectedBorderColor, null, null)) drawn++;
+				if (selected.partner != null && scored) {
+					if (drawPoly(selected.partner, g2, w, h, t, selectedBorderColor, null, null)) drawn++;
+				}
+			}
+			return drawn;
+		}
+		
+		// Image of a panel, reused while the size doesn't change
+		private BufferedImage panelImage(int i, int w, int h) {
+			if (panelImages[i] == null || panelImages[i].getWidth() != w || panelImages[i].getHeight() != h) {
+				panelImages[i] = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
 			}
+			return panelImages[i];
+		}
+		
+		// Index of the grid view at a screen position
+		private int panelAt(int x, int y) {
+			int pw = getWidth() / 2;
+			int ph = getHeight() / ((gridViews.size() + 1) / 2);
+			int i = Math.min(1, x / pw) + 2 * (y / ph);
+			return Math.min(i, gridViews.size() - 1);
+		}
+		
+		// Position relative to the view under the mouse, in grid mode the views have their own origin
+		private int localX(int x, int y) {
+			return isGridMode() ? x - (panelAt(x, y) % 2) * (getWidth() / 2) : x;
+		}
+		
+		private int localY(int x, int y) {
+			return isGridMode() ? y - (panelAt(x, y) / 2) * (getHeight() / ((gridViews.size() + 1) / 2)) : y;
 		}
 		
-		private int textWidth(String text, Graphics2D g) {
-			FontRenderContext context = g.getFontRenderContext();
-			Rectangle2D r = font.getStringBounds(text, context);
-			return (int) r.getWidth();
+		private Polygon polygonAtMouse(int x, int y) {
+			BandTriplet view = isGridMode() ? gridViews.get(panelAt(x, y)) : currentBandTriplet;
+			return polygonAt(localX(x, y), localY(x, y), view);
 		}
 
 		@Override
 		public void mouseClicked(java.awt.event.MouseEvent e) {
-			// nothing
+			selectedPolygon = polygonAtMouse(e.getX(), e.getY());
+			inspectorArea.setText(selectedPolygon == null ? "" : describe(selectedPolygon, false));
+			inspectorArea.setCaretPosition(0);
+			repaintMap();
 		}
 		@Override
 		public void mouseReleased(java.awt.event.MouseEvent e) {
@@ -918,13 +2156,15 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 
 		@Override
 		public void mouseMoved(java.awt.event.MouseEvent e) {
-			// ignore
+			Polygon p = polygonAtMouse(e.getX(), e.getY());
+			setToolTipText(p == null ? null : describe(p, true));
 		}
 
 		@Override
 		public void mouseWheelMoved(MouseWheelEvent e) {
-			mouseX = e.getX();
-			mouseY = e.getY();
+			// the point under the mouse stays in place, in all views of the grid mode
+			mouseX = localX(e.getX(), e.getY());
+			mouseY = localY(e.getX(), e.getY());
 			double dataX = (mouseX - x0) * scale;
 			double dataY = (mouseY - y0) * scale;
 			
@@ -943,6 +2183,13 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		// check boxes clicked
+		if (e.getSource() == gridCb) {
+			// keep showing the same area, in views half as wide
+			double f = gridCb.isSelected() ? 2 : 0.5;
+			scale *= f;
+			x0 /= f;
+			y0 /= f;
+		}
 		repaintMap();
 	}
 	
@@ -951,7 +2198,8 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		if (e.getStateChange() == ItemEvent.SELECTED) {
 			if (e.getSource() == imageSelectorComboBox) {
 				// new image selected
-				currentImageId = (String) imageSelectorComboBox.getSelectedItem();
+				setCurrentImage(imageSelectorComboBox.getSelectedIndex());
+				prioritizeScoring(currentImage);
 				loadMap();
 			}
 			else if (e.getSource() == viewSelectorComboBox) {
@@ -978,7 +2226,8 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 			String line = logArea.getDocument().getText(start, end - start).trim();
 			for (int i = 0; i < imageIds.length; i++) {
 				if (imageIds[i].equals(line)) {
-					currentImageId = imageIds[i];
+					setCurrentImage(i);
+					prioritizeScoring(currentImage);
 					imageSelectorComboBox.setSelectedIndex(i);
 					loadMap();
 					repaintMap();
@@ -1004,6 +2253,13 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		System.out.println(s);
 	}
 	
+	private Scorer.WarningListener warnings = new Scorer.WarningListener() {
+		@Override
+		public void warning(String message) {
+			log(message);
+		}
+	};
+	
 	public static void main(String[] args) throws Exception {
 		boolean setDefaults = true;
 		for (int i = 0; i < args.length; i++) { // to change settings easily from Eclipse
@@ -1050,6 +2306,12 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 		
 		v.hasGui = true;
 		int w = 1500;
+		int serverPort = -1;
+		String compiledTruthPath = null;
+		List<String> mergePaths = new Vector<>();
+		String renderOut = null;
+		int serverThreads = Runtime.getRuntime().availableProcessors();
+		String serverDir = null;
 		
 		if (setDefaults) {
 			v.hasGui = true;
@@ -1071,12 +2333,47 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 			}
 			if (args[i].equals("-no-gui")) v.hasGui = false;
 			if (args[i].equals("-w")) w = Integer.parseInt(args[i+1]);
-			if (args[i].equals("-iou-threshold")) v.iouThreshold = Double.parseDouble(args[i+1]);
+			if (args[i].equals("-compile-truth")) compiledTruthPath = args[i+1];
+			if (args[i].equals("-server")) serverPort = Integer.parseInt(args[i+1]);
+			if (args[i].equals("-server-threads")) serverThreads = Integer.parseInt(args[i+1]);
+			if (args[i].equals("-server-dir")) serverDir = args[i+1];
+			if (args[i].equals("-iou-threshold")) v.scoringOptions.iouThreshold = Double.parseDouble(args[i+1]);
+			if (args[i].equals("-iou-engine")) v.scoringOptions.fastIou = args[i+1].equalsIgnoreCase("fast");
+			if (args[i].equals("-iou-margin")) v.scoringOptions.iouMargin = Double.parseDouble(args[i+1]);
+			if (args[i].equals("-pixel-iou")) v.scoringOptions.pixelIou = true;
 			if (args[i].equals("-truth")) v.truthPath = args[i+1];
-			if (args[i].equals("-solution")) v.solutionPath = args[i+1];
+			if (args[i].equals("-solution")) {
+				// one or more files or glob patterns, up to the next option
+				for (int j = i + 1; j < args.length && !args[j].startsWith("-"); j++) {
+					v.solutionPaths.addAll(expandGlob(args[j]));
+				}
+				if (!v.solutionPaths.isEmpty()) v.solutionPath = v.solutionPaths.get(0);
+			}
+			if (args[i].equals("-solution-b")) v.solutionBPath = args[i+1];
+			if (args[i].equals("-per-image")) v.perImageComparison = true;
+			if (args[i].equals("-stream")) v.streaming = true;
+			if (args[i].equals("-watch")) v.watch = true;
+			if (args[i].equals("-render-out")) renderOut = args[i+1];
+			if (args[i].equals("-shard")) {
+				String[] parts = args[i+1].split("/");
+				v.shardIndex = Integer.parseInt(parts[0]);
+				v.shardCount = Integer.parseInt(parts[1]);
+				if (v.shardIndex < 1 || v.shardIndex > v.shardCount) exit("Invalid shard: " + args[i+1]);
+			}
+			if (args[i].equals("-partial-out")) v.partialOutPath = args[i+1];
+			if (args[i].equals("-merge")) {
+				for (int j = i + 1; j < args.length && !args[j].startsWith("-"); j++) {
+					mergePaths.addAll(expandGlob(args[j]));
+				}
+			}
+			if (args[i].equals("-queue-depth")) v.streamQueueDepth = Integer.parseInt(args[i+1]);
 			if (args[i].equals("-image3-dir")) v.image3Dir = args[i+1];
 			if (args[i].equals("-image8-dir")) v.image8Dir = args[i+1];
+			if (args[i].equals("-image-index")) v.imageIndexPath = args[i+1];
 			if (args[i].equals("-band-triplets")) v.bandTripletPath = args[i+1];
+			if (args[i].equals("-band-stats")) v.bandStatsPath = args[i+1];
+			if (args[i].equals("-grid")) v.gridSpec = args[i+1];
+			if (args[i].equals("-stats-scale")) v.statsScale = args[i+1];
 			if (args[i].equals("-tp-border-solution")) v.tpBorderSolutionColor = parseColor(args[i+1]);
 			if (args[i].equals("-tp-fill-solution")) v.tpFillSolutionColor = parseColor(args[i+1]);
 			if (args[i].equals("-tp-border-truth")) v.tpBorderTruthColor = parseColor(args[i+1]);
@@ -1087,11 +2384,105 @@ public class Visualizer implements ActionListener, ItemListener, MouseListener {
 			if (args[i].equals("-fn-fill")) v.fnFillColor = parseColor(args[i+1]);
 		}
 		
+		if (!v.statsScale.equals("image") && !v.statsScale.equals("dataset") && !v.statsScale.equals("p99")) {
+			exit("Invalid -stats-scale, use image, dataset or p99: " + v.statsScale);
+		}
+		v.scorer = new Scorer(v.scoringOptions);
+		
+		if (!mergePaths.isEmpty()) {
+			v.hasGui = false;
+			v.mergePartials(mergePaths);
+			return;
+		}
+		
+		if (compiledTruthPath != null) {
+			if (v.truthPath == null) exit("Truth file not set.");
+			v.hasGui = false;
+			v.compileTruth(compiledTruthPath);
+			return;
+		}
+		
+		if (serverPort != -1) {
+			if (v.truthPath == null) exit("Truth file not set.");
+			v.hasGui = false;
+			if (serverDir != null && !new File(serverDir).isDirectory()) exit("Not a directory: " + serverDir);
+			new ScoringServer(v, serverPort, serverThreads, serverDir == null ? null : new File(serverDir)).start();
+			return;
+		}
+		
+		if (v.solutionPaths.size() > 1) {
+			if (v.truthPath == null) exit("Truth file not set.");
+			v.hasGui = false;
+			v.runComparison();
+			return;
+		}
+		
+		if (v.solutionBPath != null && !v.hasGui) {
+			if (v.truthPath == null) exit("Truth file not set.");
+			if (v.solutionPath == null) exit("Solution file not set.");
+			v.runAbDiff();
+			return;
+		}
+		
+		if (renderOut != null) {
+			System.setProperty("java.awt.headless", "true");
+			if (v.image3Dir == null) exit("3-band image directory not set.");
+			File dir = new File(renderOut);
+			if (!dir.isDirectory() && !dir.mkdirs()) exit("Can't create output directory: " + renderOut);
+			v.hasGui = false;
+			v.renderAll(renderOut);
+			return;
+		}
+		
+		if (v.partialOutPath != null) {
+			v.hasGui = false;
+			v.openPartialOut();
+		}
+		
+		if (v.streaming) {
+			if (v.truthPath == null) exit("Truth file not set.");
+			if (v.solutionPath == null) exit("Solution file not set.");
+			if (v.runMode == RunMode.IMAGE_DIR) exit("-stream can't be used with -run-mode image-directory, the images come from the solution file.");
+			v.hasGui = false;
+			v.runStreaming();
+			return;
+		}
+		
 		if (v.image3Dir == null && v.hasGui) exit("3-band image directory not set.");
 		if (v.image8Dir == null && v.hasGui) exit("8-band image directory not set.");
 		
+		if (v.watch && v.solutionBPath != null) exit("-watch can't be used with -solution-b.");
+		
 		v.setupGUI(w);
 		v.run();
+		if (v.watch) {
+			if (v.solutionPath == null) exit("Solution file not set.");
+			v.watchSolution();
+		}
+	}
+	
+	// Files matching a pattern like dir/*.csv, the pattern itself if it has no wildcards 
+	private static List<String> expandGlob(String pattern) throws Exception {
+		List<String> ret = new Vector<>();
+		if (!pattern.contains("*") && !pattern.contains("?")) {
+			ret.add(pattern);
+			return ret;
+		}
+		File f = new File(pattern);
+		File dir = f.getParentFile() != null ? f.getParentFile() : new File(".");
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + f.getName());
+		DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath());
+		try {
+			for (Path p: ds) {
+				if (matcher.matches(p.getFileName())) ret.add(new File(dir, p.getFileName().toString()).getPath());
+			}
+		}
+		finally {
+			ds.close();
+		}
+		Collections.sort(ret);
+		if (ret.isEmpty()) exit("No file matches " + pattern);
+		return ret;
 	}
 	
 	private static Color parseColor(String s) {